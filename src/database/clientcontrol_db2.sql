@@ -1,5 +1,5 @@
 
-INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 0);
+INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 1);
 
 CREATE TABLE ofBookmark (
    bookmarkID       INTEGER          NOT NULL,
@@ -7,8 +7,10 @@ CREATE TABLE ofBookmark (
    bookmarkName     VARCHAR(255)     NOT NULL,
    bookmarkValue    VARCHAR(1024)    NOT NULL,
    isGlobal         INTEGER          NOT NULL,
+   bookmarkValuePrefix VARCHAR(255) GENERATED ALWAYS AS (SUBSTR(bookmarkValue, 1, 255)),
    CONSTRAINT ofBookmark_pk PRIMARY KEY (bookmarkID)
 );
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValuePrefix);
 
 CREATE TABLE ofBookmarkPerm (
    bookmarkID   INTEGER              NOT NULL,
@@ -16,6 +18,7 @@ CREATE TABLE ofBookmarkPerm (
    name         VARCHAR(255)         NOT NULL,
    CONSTRAINT ofBookmarkPerm_pk PRIMARY KEY(bookmarkID, name, bookmarkType)
 );
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
 
 CREATE TABLE ofBookmarkProp (
    bookmarkID   INTEGER              NOT NULL,
@@ -1,5 +1,5 @@
 
-INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 0);
+INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 1);
 
 CREATE TABLE ofBookmark (
    bookmarkID       INTEGER           NOT NULL,
@@ -9,6 +9,7 @@ CREATE TABLE ofBookmark (
    isGlobal         INT               NOT NULL,
    CONSTRAINT ofBookmark_pk PRIMARY KEY (bookmarkID)
 );
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValue);
 
 CREATE TABLE ofBookmarkPerm (
    bookmarkID   INTEGER              NOT NULL,
@@ -16,6 +17,7 @@ CREATE TABLE ofBookmarkPerm (
    name         VARCHAR2(255)        NOT NULL,
    CONSTRAINT ofBookmarkPerm_pk PRIMARY KEY(bookmarkID, name, bookmarkType)
 );
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
 
 CREATE TABLE ofBookmarkProp (
    bookmarkID   INTEGER               NOT NULL,
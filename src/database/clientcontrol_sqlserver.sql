@@ -1,5 +1,5 @@
 
-INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 0);
+INSERT INTO ofVersion (name, version) VALUES ('clientcontrol', 1);
 
 CREATE TABLE ofBookmark (
    bookmarkID       BIGINT           NOT NULL,
@@ -7,8 +7,10 @@ CREATE TABLE ofBookmark (
    bookmarkName     NVARCHAR(255)    NOT NULL,
    bookmarkValue    NVARCHAR(1024)   NOT NULL,
    isGlobal         INT              NOT NULL,
+   bookmarkValuePrefix AS CAST(LEFT(bookmarkValue, 255) AS NVARCHAR(255)) PERSISTED,
    CONSTRAINT ofBookmark_pk PRIMARY KEY (bookmarkID)
 );
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValuePrefix);
 
 CREATE TABLE ofBookmarkPerm (
    bookmarkID   BIGINT               NOT NULL,
@@ -16,6 +18,7 @@ CREATE TABLE ofBookmarkPerm (
    name         NVARCHAR(255)        NOT NULL,
    CONSTRAINT ofBookmarkPerm_pk PRIMARY KEY(bookmarkID, name, bookmarkType)
 );
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
 
 CREATE TABLE ofBookmarkProp (
    bookmarkID   BIGINT               NOT NULL,
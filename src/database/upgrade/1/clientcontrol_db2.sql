@@ -0,0 +1,12 @@
+-- Index the bookmark values, which are looked up when a room is addressed directly.
+-- A value can take up to 1024 bytes, which exceeds the size of an index key on 4K pages, so
+-- only a prefix of each value is indexed. Lookups compare the prefix first, and then the value.
+SET INTEGRITY FOR ofBookmark OFF;
+ALTER TABLE ofBookmark ADD COLUMN bookmarkValuePrefix VARCHAR(255) GENERATED ALWAYS AS (SUBSTR(bookmarkValue, 1, 255));
+SET INTEGRITY FOR ofBookmark IMMEDIATE CHECKED FORCE GENERATED;
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValuePrefix);
+
+-- Index the permissions by user or group name, to find the bookmarks that apply to them.
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'clientcontrol';
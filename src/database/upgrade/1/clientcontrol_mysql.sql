@@ -0,0 +1,7 @@
+-- Index the bookmark values, which are looked up when a room is addressed directly.
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValue);
+
+-- Index the permissions by user or group name, to find the bookmarks that apply to them.
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'clientcontrol';
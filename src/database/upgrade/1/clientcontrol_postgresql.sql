@@ -0,0 +1,9 @@
+-- Index the bookmark values, which are looked up when a room is addressed directly.
+-- A value can take up to 4096 bytes, which exceeds the size of a B-tree index entry, so only
+-- a prefix of each value is indexed. Lookups compare the prefix first, and then the value.
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (substr(bookmarkValue, 1, 255));
+
+-- Index the permissions by user or group name, to find the bookmarks that apply to them.
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'clientcontrol';
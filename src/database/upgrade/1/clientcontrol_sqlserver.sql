@@ -0,0 +1,10 @@
+-- Index the bookmark values, which are looked up when a room is addressed directly.
+-- A value can take up to 2048 bytes, which exceeds the size of an index key, so only a
+-- prefix of each value is indexed. Lookups compare the prefix first, and then the value.
+ALTER TABLE ofBookmark ADD bookmarkValuePrefix AS CAST(LEFT(bookmarkValue, 255) AS NVARCHAR(255)) PERSISTED;
+CREATE INDEX ofBookmark_value_idx ON ofBookmark (bookmarkValuePrefix);
+
+-- Index the permissions by user or group name, to find the bookmarks that apply to them.
+CREATE INDEX ofBookmarkPerm_name_idx ON ofBookmarkPerm (name, bookmarkType);
+
+UPDATE ofVersion SET version = 1 WHERE name = 'clientcontrol';
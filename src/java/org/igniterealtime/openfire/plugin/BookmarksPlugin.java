@@ -4,9 +4,15 @@ import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
+import org.jivesoftware.admin.AuthCheckFilter;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
+import org.jivesoftware.openfire.plugin.spark.BookmarkAvatarServlet;
+import org.jivesoftware.openfire.plugin.spark.BookmarkGroupEventListener;
 import org.jivesoftware.openfire.plugin.spark.BookmarkInterceptor;
+import org.jivesoftware.openfire.plugin.spark.BookmarkManager;
+import org.jivesoftware.openfire.plugin.spark.BookmarkOrphanScanner;
+import org.jivesoftware.openfire.plugin.spark.EnterpriseBookmarkMigration;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Version;
 import org.slf4j.Logger;
@@ -26,7 +32,12 @@ public class BookmarksPlugin implements Plugin
 {
     private final static Logger Log = LoggerFactory.getLogger( BookmarksPlugin.class );
 
+    private static volatile BookmarksPlugin instance;
+
     private BookmarkInterceptor bookmarkInterceptor;
+    private BookmarkGroupEventListener groupEventListener;
+    private BookmarkOrphanScanner orphanScanner;
+    private EnterpriseBookmarkMigration enterpriseMigration;
 
     public void initializePlugin( PluginManager manager, File pluginDirectory )
     {
@@ -57,14 +68,56 @@ public class BookmarksPlugin implements Plugin
             throw new IllegalStateException( "This plugin cannot run next to the Enterprise plugin (any version) or the ClientControl plugin v1.3.1 or earlier." );
         }
 
+        // Load all bookmarks into memory, so that the first request does not have to wait for the database.
+        BookmarkManager.reloadCatalog();
+
         // Create and start the bookmark interceptor, which adds server-managed bookmarks when
         // a user requests their bookmark list.
         bookmarkInterceptor = new BookmarkInterceptor();
         bookmarkInterceptor.start();
+
+        // Avatars that are served over HTTP are requested by clients, not by administrators.
+        AuthCheckFilter.addExclude( BookmarkAvatarServlet.PATH + "*" );
+
+        // Keep the bookmarks that are resolved for group members up to date.
+        groupEventListener = new BookmarkGroupEventListener();
+        groupEventListener.start();
+
+        // Periodically remove permissions and properties of bookmarks that no longer exist.
+        orphanScanner = new BookmarkOrphanScanner();
+        orphanScanner.start();
+
+        // Copy the bookmarks of the Enterprise plugin, if an administrator has asked for it.
+        enterpriseMigration = new EnterpriseBookmarkMigration();
+        enterpriseMigration.start();
+
+        instance = this;
     }
 
     public void destroyPlugin()
     {
+        instance = null;
+
+        AuthCheckFilter.removeExclude( BookmarkAvatarServlet.PATH + "*" );
+
+        if ( enterpriseMigration != null )
+        {
+            enterpriseMigration.stop();
+            enterpriseMigration = null;
+        }
+
+        if ( orphanScanner != null )
+        {
+            orphanScanner.stop();
+            orphanScanner = null;
+        }
+
+        if ( groupEventListener != null )
+        {
+            groupEventListener.stop();
+            groupEventListener = null;
+        }
+
         if ( bookmarkInterceptor != null )
         {
             bookmarkInterceptor.stop();
@@ -72,6 +125,36 @@ public class BookmarksPlugin implements Plugin
         }
     }
 
+    /**
+     * Returns the instance of this plugin that is currently running.
+     *
+     * @return the plugin, or null when it is not running.
+     */
+    public static BookmarksPlugin getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Returns the task that removes orphaned bookmark permissions and properties.
+     *
+     * @return the orphan scanner.
+     */
+    public BookmarkOrphanScanner getOrphanScanner()
+    {
+        return orphanScanner;
+    }
+
+    /**
+     * Returns the task that migrates the bookmarks of the Enterprise plugin.
+     *
+     * @return the migration task.
+     */
+    public EnterpriseBookmarkMigration getEnterpriseMigration()
+    {
+        return enterpriseMigration;
+    }
+
     /**
      * Checks if there's a plugin named "enterprise" in the Openfire plugin directory.
      *
@@ -27,15 +27,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.io.Serializable;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.JiveID;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -85,8 +89,8 @@ public class Bookmark implements Serializable {
             "SELECT bookmarkType, name FROM ofBookmarkPerm WHERE bookmarkID=?";
     //    private static final String SAVE_BOOKMARK_PERMISSIONS =
     //            "UPDATE ofBookmarkPerm SET bookmarkType=?, name=? WHERE bookmarkID=?";
-    private static final String DELETE_BOOKMARK_PERMISSIONS =
-            "DELETE from ofBookmarkPerm WHERE bookmarkID=?";
+    private static final String DELETE_BOOKMARK_PERMISSION =
+            "DELETE FROM ofBookmarkPerm WHERE bookmarkID=? AND bookmarkType=? AND name=?";
     private static final String SAVE_BOOKMARK =
             "UPDATE ofBookmark SET bookmarkType=?, bookmarkName=?, bookmarkValue=?, isGlobal=? " +
                     "WHERE bookmarkID=?";
@@ -96,6 +100,16 @@ public class Bookmark implements Serializable {
     private static final String LOAD_BOOKMARK_BY_VALUE =
             "SELECT bookmarkType, bookmarkName, bookmarkID, isGlobal FROM " +
                     "ofBookmark WHERE bookmarkValue=?";
+    // On these databases only a prefix of each value is indexed (see the database scripts).
+    private static final String LOAD_BOOKMARK_BY_VALUE_SQLSERVER =
+            "SELECT bookmarkType, bookmarkName, bookmarkID, isGlobal FROM ofBookmark " +
+                    "WHERE bookmarkValuePrefix=CAST(LEFT(?, 255) AS NVARCHAR(255)) AND bookmarkValue=?";
+    private static final String LOAD_BOOKMARK_BY_VALUE_DB2 =
+            "SELECT bookmarkType, bookmarkName, bookmarkID, isGlobal FROM ofBookmark " +
+                    "WHERE bookmarkValuePrefix=SUBSTR(CAST(? AS VARCHAR(1024)), 1, 255) AND bookmarkValue=?";
+    private static final String LOAD_BOOKMARK_BY_VALUE_POSTGRESQL =
+            "SELECT bookmarkType, bookmarkName, bookmarkID, isGlobal FROM ofBookmark " +
+                    "WHERE substr(bookmarkValue, 1, 255)=substr(?, 1, 255) AND bookmarkValue=?";
     private static final String LOAD_PROPERTIES =
             "SELECT name, propValue FROM ofBookmarkProp WHERE bookmarkID=?";
     private static final String INSERT_PROPERTY =
@@ -115,8 +129,8 @@ public class Bookmark implements Serializable {
     private Collection<String> groups;
     private Map<String, String> properties;
 
-    private static int USERS = 0;
-    private static int GROUPS = 1;
+    static final int USERS = 0;
+    static final int GROUPS = 1;
 
     public Bookmark() {
 
@@ -128,19 +142,14 @@ public class Bookmark implements Serializable {
      * @param type  the bookmark type.
      * @param name  the name of the bookmark.
      * @param value the value of the bookmark.
+     * @throws IllegalStateException if the bookmark could not be saved.
      */
     public Bookmark(Type type, String name, String value) {
         this.type = type;
         this.name = name;
         this.value = value;
-
-        try {
-            insertIntoDb();
-            insertBookmarkPermissions();
-        }
-        catch (Exception e) {
-            Log.error(e.getMessage(), e);
-        }
+        this.properties = new Hashtable<String, String>();
+        insertIntoDb();
     }
 
     /**
@@ -149,6 +158,7 @@ public class Bookmark implements Serializable {
      * @param type  the bookmark type.
      * @param name  the name of the bookmark.
      * @param value the value of the bookmark.
+     * @throws IllegalStateException if the bookmark could not be saved.
      */
     public Bookmark(Type type, String name, String value, Collection<String> users, Collection<String> groups) {
         this.type = type;
@@ -156,14 +166,8 @@ public class Bookmark implements Serializable {
         this.value = value;
         this.users = users;
         this.groups = groups;
-
-        try {
-            insertIntoDb();
-            insertBookmarkPermissions();
-        }
-        catch (Exception e) {
-            Log.error(e.getMessage(), e);
-        }
+        this.properties = new Hashtable<String, String>();
+        insertIntoDb();
     }
 
     /**
@@ -178,6 +182,31 @@ public class Bookmark implements Serializable {
         loadPermissions();
     }
 
+    /**
+     * Creates a bookmark from values that have already been read from the database. No
+     * database access is performed.
+     *
+     * @param bookmarkID the bookmark ID.
+     * @param type       the bookmark type.
+     * @param name       the name of the bookmark.
+     * @param value      the value of the bookmark.
+     * @param global     true if this is a global bookmark.
+     * @param users      the usernames that have been assigned the bookmark.
+     * @param groups     the group names that have been assigned the bookmark.
+     * @param properties the extended properties of the bookmark.
+     */
+    Bookmark(long bookmarkID, Type type, String name, String value, boolean global,
+             Collection<String> users, Collection<String> groups, Map<String, String> properties) {
+        this.bookmarkID = bookmarkID;
+        this.type = type;
+        this.name = name;
+        this.value = value;
+        this.global = global;
+        this.users = users;
+        this.groups = groups;
+        this.properties = properties;
+    }
+
     /**
      * Loads an existing bookmark based on its value.
      *
@@ -240,8 +269,7 @@ public class Bookmark implements Serializable {
         if (name == null) {
             throw new IllegalArgumentException("Bookmark name must not be null.");
         }
-        this.name = name;
-        saveToDb();
+        save(edit().setName(name));
     }
 
     /**
@@ -263,8 +291,7 @@ public class Bookmark implements Serializable {
         if (value == null) {
             throw new IllegalArgumentException("Bookmark value must not be null.");
         }
-        this.value = value;
-        saveToDb();
+        save(edit().setValue(value));
     }
 
     /**
@@ -283,9 +310,7 @@ public class Bookmark implements Serializable {
      * @param users the collection of usernames.
      */
     public void setUsers(Collection<String> users) {
-        this.users = users;
-        saveToDb();
-        insertBookmarkPermissions();
+        save(edit().setUsers(users));
     }
 
     /**
@@ -298,10 +323,13 @@ public class Bookmark implements Serializable {
         return groups;
     }
 
+    /**
+     * Sets the collection of group names that have been assigned the bookmark.
+     *
+     * @param groups the collection of group names.
+     */
     public void setGroups(Collection<String> groups) {
-        this.groups = groups;
-        saveToDb();
-        insertBookmarkPermissions();
+        save(edit().setGroups(groups));
     }
 
     /**
@@ -322,8 +350,7 @@ public class Bookmark implements Serializable {
      * @param global true if this is a global bookmark.
      */
     public void setGlobalBookmark(boolean global) {
-        this.global = global;
-        saveToDb();
+        save(edit().setGlobalBookmark(global));
     }
 
     /**
@@ -378,28 +405,12 @@ public class Bookmark implements Serializable {
      * value will be updated.
      *
      * @param name  the name of the property to set.
-     * @param value the new value for the property.
+     * @param value the new value for the property. A null value deletes the property.
      */
     public void setProperty(String name, String value)
     {
         Log.debug("setProperty " + name + " " + value);
-
-        if (properties == null) {
-            loadPropertiesFromDb();
-        }
-        // See if we need to update a property value or insert a new one.
-        if (properties.containsKey(name)) {
-            // Only update the value in the database if the property value
-            // has changed.
-            if (!(value.equals(properties.get(name)))) {
-                properties.put(name, value);
-                updatePropertyInDb(name, value);
-            }
-        }
-        else {
-            properties.put(name, value);
-            insertPropertyIntoDb(name, value);
-        }
+        save(edit().setProperty(name, value));
     }
 
     /**
@@ -409,13 +420,9 @@ public class Bookmark implements Serializable {
      * @param name the name of the property to delete.
      */
     public void deleteProperty(String name) {
-        if (properties == null) {
-            loadPropertiesFromDb();
-        }
         // Only delete the property if it exists.
-        if (properties.containsKey(name)) {
-            properties.remove(name);
-            deletePropertyFromDb(name);
+        if (getPropertyMap().containsKey(name)) {
+            save(edit().deleteProperty(name));
         }
     }
 
@@ -431,6 +438,86 @@ public class Bookmark implements Serializable {
         return Collections.unmodifiableSet(properties.keySet()).iterator();
     }
 
+    /**
+     * Returns the backing map of extended properties, loading it from the database
+     * when it has not been loaded yet.
+     *
+     * @return the extended properties of this bookmark.
+     */
+    Map<String, String> getPropertyMap() {
+        if (properties == null) {
+            loadPropertiesFromDb();
+        }
+        return properties;
+    }
+
+    /**
+     * Returns an editor that stages changes to this bookmark, and applies all of them in
+     * one database transaction. Each setter of this class commits an editor with a single
+     * change, so an editor is preferred when several changes are made at once: it updates
+     * the bookmark row once, and the catalog of bookmarks once.
+     *
+     * @return a new editor for this bookmark.
+     */
+    public Editor edit() {
+        return new Editor(false);
+    }
+
+    /**
+     * Commits the changes of one of the setters. The setters don't report failures: the
+     * error is logged, and the bookmark is left unchanged.
+     */
+    private void save(Editor editor) {
+        try {
+            editor.commit();
+        }
+        catch (SQLException sqle) {
+            Log.error(sqle.getMessage(), sqle);
+        }
+    }
+
+    /**
+     * Returns an editor that creates a new bookmark when it is committed. The bookmark, its
+     * permissions and its properties are inserted in one database transaction, so that a
+     * failure does not leave a partly created bookmark behind.
+     *
+     * @param type the bookmark type.
+     * @return a new editor for a bookmark that does not exist yet.
+     */
+    public static Editor create(Type type) {
+        final Bookmark bookmark = new Bookmark();
+        bookmark.type = type;
+        bookmark.properties = new Hashtable<String, String>();
+        return bookmark.new Editor(true);
+    }
+
+    /**
+     * Returns a detached, read-only copy of this bookmark, suitable for use in a
+     * {@link BookmarkCatalog}. The collections of the copy cannot be modified, and the
+     * copy is not affected by later changes to this bookmark.
+     *
+     * @return a read-only copy of this bookmark.
+     */
+    Bookmark snapshot() {
+        return new Bookmark(bookmarkID, type, name, value, global,
+                Collections.unmodifiableList(users == null ? new ArrayList<String>() : new ArrayList<String>(users)),
+                Collections.unmodifiableList(groups == null ? new ArrayList<String>() : new ArrayList<String>(groups)),
+                Collections.unmodifiableMap(new HashMap<String, String>(getPropertyMap())));
+    }
+
+    /**
+     * Returns a modifiable copy of this bookmark. Changes made through the setters of the
+     * copy are persisted as usual.
+     *
+     * @return a copy of this bookmark.
+     */
+    Bookmark copy() {
+        return new Bookmark(bookmarkID, type, name, value, global,
+                users == null ? new ArrayList<String>() : new ArrayList<String>(users),
+                groups == null ? new ArrayList<String>() : new ArrayList<String>(groups),
+                new Hashtable<String, String>(getPropertyMap()));
+    }
+
     /**
      * Tye type of the bookmark.
      */
@@ -450,100 +537,316 @@ public class Bookmark implements Serializable {
 
 
     /**
-     * Inserts a new bookmark into the database.
+     * Stages changes to a bookmark, which are saved by {@link #commit()}. Obtain an
+     * instance through {@link Bookmark#edit()}, or through {@link Bookmark#create(Type)}
+     * for a new bookmark.
      */
-    private void insertIntoDb() {
-        this.bookmarkID = SequenceManager.nextID(this);
-        Connection con = null;
-        boolean abortTransaction = false;
-        try {
-            con = DbConnectionManager.getTransactionConnection();
-            PreparedStatement pstmt = con.prepareStatement(INSERT_BOOKMARK);
-            pstmt.setLong(1, bookmarkID);
-            pstmt.setString(2, type.toString());
-            pstmt.setString(3, name);
-            pstmt.setString(4, value);
-            pstmt.setInt(5, global ? 1 : 0);
-            pstmt.executeUpdate();
-            pstmt.close();
+    public class Editor {
+
+        private final boolean create;
+        private String name = Bookmark.this.name;
+        private String value = Bookmark.this.value;
+        private boolean global = Bookmark.this.global;
+        private Collection<String> users;
+        private Collection<String> groups;
+        private final Map<String, String> setProperties = new HashMap<String, String>();
+        private final Set<String> deletedProperties = new HashSet<String>();
+
+        private Editor(boolean create) {
+            this.create = create;
         }
-        catch (SQLException e) {
-            abortTransaction = true;
+
+        /**
+         * Sets the name of the bookmark.
+         *
+         * @param name the name of the bookmark.
+         * @return this editor.
+         */
+        public Editor setName(String name) {
+            if (name == null) {
+                throw new IllegalArgumentException("Bookmark name must not be null.");
+            }
+            this.name = name;
+            return this;
         }
-        finally {
-            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+
+        /**
+         * Sets the value of the bookmark; either a URL or a conference room address.
+         *
+         * @param value the value of the bookmark.
+         * @return this editor.
+         */
+        public Editor setValue(String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Bookmark value must not be null.");
+            }
+            this.value = value;
+            return this;
         }
-    }
 
-    private void insertBookmarkPermissions() {
-        // Delete other permission.
-        try {
-            deleteBookmarkPermissions();
+        /**
+         * Sets whether the bookmark is applied to all users on the server.
+         *
+         * @param global true if this is a global bookmark.
+         * @return this editor.
+         */
+        public Editor setGlobalBookmark(boolean global) {
+            this.global = global;
+            return this;
         }
-        catch (Exception e) {
-            Log.error(e.getMessage(), e);
+
+        /**
+         * Sets the collection of usernames that have been assigned the bookmark.
+         *
+         * @param users the collection of usernames (can be null).
+         * @return this editor.
+         */
+        public Editor setUsers(Collection<String> users) {
+            this.users = users == null ? new ArrayList<String>() : new ArrayList<String>(users);
+            return this;
         }
 
-        // Persist users
-        if (users != null) {
-            for (String user : users) {
-                try {
-                    insertBookmarkPermission(USERS, user);
-                }
-                catch (Exception e) {
-                    Log.error(e.getMessage(), e);
-                }
+        /**
+         * Sets the collection of group names that have been assigned the bookmark.
+         *
+         * @param groups the collection of group names (can be null).
+         * @return this editor.
+         */
+        public Editor setGroups(Collection<String> groups) {
+            this.groups = groups == null ? new ArrayList<String>() : new ArrayList<String>(groups);
+            return this;
+        }
+
+        /**
+         * Sets an extended property. Setting a property to null deletes it.
+         *
+         * @param name  the name of the property to set.
+         * @param value the new value for the property (can be null).
+         * @return this editor.
+         */
+        public Editor setProperty(String name, String value) {
+            if (value == null) {
+                return deleteProperty(name);
             }
+            deletedProperties.remove(name);
+            setProperties.put(name, value);
+            return this;
+        }
+
+        /**
+         * Deletes an extended property. Properties that do not exist are ignored.
+         *
+         * @param name the name of the property to delete.
+         * @return this editor.
+         */
+        public Editor deleteProperty(String name) {
+            setProperties.remove(name);
+            deletedProperties.add(name);
+            return this;
         }
 
-        if (groups != null) {
-            for (String group : groups) {
-                try {
-                    insertBookmarkPermission(GROUPS, group);
+        /**
+         * Saves all staged changes in one database transaction, inserting the bookmark if
+         * this editor creates a new one. When the transaction fails, the bookmark is left
+         * unchanged (and a new bookmark is not created).
+         *
+         * @throws SQLException if the changes could not be saved.
+         */
+        public void commit() throws SQLException {
+            final Map<String, String> currentProperties = getPropertyMap();
+            final Collection<String> newUsers = users != null ? users : Bookmark.this.users;
+            final Collection<String> newGroups = groups != null ? groups : Bookmark.this.groups;
+            if (create) {
+                bookmarkID = SequenceManager.nextID(Bookmark.this);
+            }
+
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            boolean abortTransaction = false;
+            try {
+                con = DbConnectionManager.getTransactionConnection();
+
+                if (create) {
+                    pstmt = con.prepareStatement(INSERT_BOOKMARK);
+                    pstmt.setLong(1, bookmarkID);
+                    pstmt.setString(2, type.toString());
+                    pstmt.setString(3, name);
+                    pstmt.setString(4, value);
+                    pstmt.setInt(5, global ? 1 : 0);
+                }
+                else {
+                    pstmt = con.prepareStatement(SAVE_BOOKMARK);
+                    pstmt.setString(1, type.toString());
+                    pstmt.setString(2, name);
+                    pstmt.setString(3, value);
+                    pstmt.setInt(4, global ? 1 : 0);
+                    pstmt.setLong(5, bookmarkID);
+                }
+                pstmt.executeUpdate();
+                DbConnectionManager.fastcloseStmt(pstmt);
+
+                if (create || users != null || groups != null) {
+                    updatePermissions(con, newUsers, newGroups);
+                }
+
+                for (Map.Entry<String, String> property : setProperties.entrySet()) {
+                    if (!currentProperties.containsKey(property.getKey())) {
+                        pstmt = con.prepareStatement(INSERT_PROPERTY);
+                        pstmt.setLong(1, bookmarkID);
+                        pstmt.setString(2, property.getKey());
+                        pstmt.setString(3, property.getValue());
+                        pstmt.executeUpdate();
+                        DbConnectionManager.fastcloseStmt(pstmt);
+                    }
+                    else if (!property.getValue().equals(currentProperties.get(property.getKey()))) {
+                        pstmt = con.prepareStatement(UPDATE_PROPERTY);
+                        pstmt.setString(1, property.getValue());
+                        pstmt.setString(2, property.getKey());
+                        pstmt.setLong(3, bookmarkID);
+                        pstmt.executeUpdate();
+                        DbConnectionManager.fastcloseStmt(pstmt);
+                    }
                 }
-                catch (Exception e) {
-                    Log.error(e.getMessage(), e);
+                for (String property : deletedProperties) {
+                    if (currentProperties.containsKey(property)) {
+                        pstmt = con.prepareStatement(DELETE_PROPERTY);
+                        pstmt.setLong(1, bookmarkID);
+                        pstmt.setString(2, property);
+                        pstmt.executeUpdate();
+                        DbConnectionManager.fastcloseStmt(pstmt);
+                    }
                 }
+                pstmt = null;
             }
+            catch (SQLException sqle) {
+                abortTransaction = true;
+                if (create) {
+                    bookmarkID = 0;
+                }
+                throw sqle;
+            }
+            finally {
+                DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            }
+
+            Bookmark.this.name = name;
+            Bookmark.this.value = value;
+            Bookmark.this.global = global;
+            Bookmark.this.users = newUsers;
+            Bookmark.this.groups = newGroups;
+            currentProperties.putAll(setProperties);
+            currentProperties.keySet().removeAll(deletedProperties);
+            BookmarkManager.bookmarkSaved(Bookmark.this);
         }
     }
 
-    private void insertBookmarkPermission(int type, String name) {
-        Connection con = null;
-        boolean abortTransaction = false;
+    /**
+     * Updates the permissions of this bookmark to their new state, using the provided
+     * connection. The stored permissions are read on the same connection, and only the rows
+     * of the users and groups that have been removed or added are deleted or inserted. The
+     * collections held by this bookmark are not used for the comparison, as they may already
+     * have been modified by the caller. Rows are written in JDBC batches, of which the size is
+     * defined by the <tt>bookmarks.permissions.batchsize</tt> property.
+     *
+     * @param con       the connection to use.
+     * @param newUsers  the usernames that are to be assigned the bookmark (can be null).
+     * @param newGroups the group names that are to be assigned the bookmark (can be null).
+     * @throws SQLException if the permissions could not be read or written.
+     */
+    private void updatePermissions(Connection con, Collection<String> newUsers, Collection<String> newGroups)
+            throws SQLException {
+        updatePermissions(con, newUsers, newGroups, getPermissionBatchSize());
+    }
+
+    /**
+     * Updates the permissions of this bookmark to their new state, writing rows in JDBC
+     * batches of the specified size.
+     *
+     * @see #updatePermissions(Connection, Collection, Collection)
+     */
+    void updatePermissions(Connection con, Collection<String> newUsers, Collection<String> newGroups, int batchSize)
+            throws SQLException {
+        final List<String> oldUsers = new ArrayList<String>();
+        final List<String> oldGroups = new ArrayList<String>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
         try {
-            con = DbConnectionManager.getTransactionConnection();
-            PreparedStatement pstmt = con.prepareStatement(INSERT_BOOKMARK_PERMISSIONS);
+            pstmt = con.prepareStatement(LOAD_BOOKMARK_PERMISSIONS);
             pstmt.setLong(1, bookmarkID);
-            pstmt.setInt(2, type);
-            pstmt.setString(3, name);
-            pstmt.executeUpdate();
-            pstmt.close();
-        }
-        catch (SQLException e) {
-            abortTransaction = true;
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                if (rs.getInt(1) == USERS) {
+                    oldUsers.add(rs.getString(2));
+                }
+                else {
+                    oldGroups.add(rs.getString(2));
+                }
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+            rs = null;
+
+            pstmt = con.prepareStatement(DELETE_BOOKMARK_PERMISSION);
+            int pending = 0;
+            pending = addPermissionBatches(pstmt, USERS, difference(oldUsers, newUsers), pending, batchSize);
+            pending = addPermissionBatches(pstmt, GROUPS, difference(oldGroups, newGroups), pending, batchSize);
+            if (pending > 0) {
+                pstmt.executeBatch();
+            }
+            DbConnectionManager.fastcloseStmt(pstmt);
+
+            pstmt = con.prepareStatement(INSERT_BOOKMARK_PERMISSIONS);
+            pending = 0;
+            pending = addPermissionBatches(pstmt, USERS, difference(newUsers, oldUsers), pending, batchSize);
+            pending = addPermissionBatches(pstmt, GROUPS, difference(newGroups, oldGroups), pending, batchSize);
+            if (pending > 0) {
+                pstmt.executeBatch();
+            }
         }
         finally {
-            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+            DbConnectionManager.closeStatement(rs, pstmt);
         }
     }
 
-    private void deleteBookmarkPermissions() {
-        Connection con = null;
-        boolean abortTransaction = false;
-        try {
-            con = DbConnectionManager.getTransactionConnection();
-            PreparedStatement pstmt = con.prepareStatement(DELETE_BOOKMARK_PERMISSIONS);
-            pstmt.setLong(1, bookmarkID);
-            pstmt.executeUpdate();
-            pstmt.close();
+    /**
+     * Returns the names that are in the first collection, but not in the second.
+     *
+     * @param names   the names (can be null).
+     * @param exclude the names to exclude (can be null).
+     * @return the difference, without duplicates.
+     */
+    static Set<String> difference(Collection<String> names, Collection<String> exclude) {
+        final Set<String> result = new LinkedHashSet<String>();
+        if (names != null) {
+            result.addAll(names);
         }
-        catch (SQLException e) {
-            abortTransaction = true;
+        if (exclude != null) {
+            result.removeAll(exclude);
         }
-        finally {
-            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        return result;
+    }
+
+    /**
+     * Adds a permission row to the batch of a statement for each name, executing the
+     * batch whenever it is full.
+     *
+     * @return the number of rows in the batch that have not yet been executed.
+     */
+    private int addPermissionBatches(PreparedStatement pstmt, int type, Collection<String> names, int pending, int batchSize) throws SQLException {
+        for (String name : names) {
+            pstmt.setLong(1, bookmarkID);
+            pstmt.setInt(2, type);
+            pstmt.setString(3, name);
+            pstmt.addBatch();
+            if (++pending >= batchSize) {
+                pstmt.executeBatch();
+                pending = 0;
+            }
         }
+        return pending;
+    }
+
+    static int getPermissionBatchSize() {
+        return Math.max(1, JiveGlobals.getIntProperty("bookmarks.permissions.batchsize", 500));
     }
 
     private void loadPermissions() {
@@ -626,8 +929,11 @@ public class Bookmark implements Serializable {
         ResultSet rs = null;
         try {
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_BOOKMARK_BY_VALUE);
+            pstmt = con.prepareStatement(getLoadBookmarkByValueQuery());
             pstmt.setString(1, value);
+            if (isValuePrefixIndexed()) {
+                pstmt.setString(2, value);
+            }
             rs = pstmt.executeQuery();
 
             if (!rs.next()) {
@@ -649,28 +955,53 @@ public class Bookmark implements Serializable {
     }
 
     /**
-     * Saves a bookmark to the database.
+     * Returns true if only a prefix of each bookmark value can be indexed on the database
+     * that is in use, as the value is too wide to be indexed as a whole.
+     *
+     * @return true if the value is looked up by its indexed prefix first.
      */
-    private void saveToDb() {
-        Connection con = null;
-        boolean abortTransaction = false;
+    private static boolean isValuePrefixIndexed() {
+        switch (DbConnectionManager.getDatabaseType()) {
+            case sqlserver:
+            case db2:
+            case postgresql:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the query that loads a bookmark by its value. Where the value is indexed by its
+     * prefix (see {@link #isValuePrefixIndexed()}), the query matches that prefix first, and
+     * takes the value as both its first and second parameter.
+     *
+     * @return the query for the database that is in use.
+     */
+    private static String getLoadBookmarkByValueQuery() {
+        switch (DbConnectionManager.getDatabaseType()) {
+            case sqlserver:
+                return LOAD_BOOKMARK_BY_VALUE_SQLSERVER;
+            case db2:
+                return LOAD_BOOKMARK_BY_VALUE_DB2;
+            case postgresql:
+                return LOAD_BOOKMARK_BY_VALUE_POSTGRESQL;
+            default:
+                return LOAD_BOOKMARK_BY_VALUE;
+        }
+    }
+
+    /**
+     * Inserts this new bookmark, including its permissions, into the database.
+     *
+     * @throws IllegalStateException if the bookmark could not be saved.
+     */
+    private void insertIntoDb() {
         try {
-            con = DbConnectionManager.getTransactionConnection();
-            PreparedStatement pstmt = con.prepareStatement(SAVE_BOOKMARK);
-            pstmt.setString(1, type.toString());
-            pstmt.setString(2, name);
-            pstmt.setString(3, value);
-            pstmt.setInt(4, global ? 1 : 0);
-            pstmt.setLong(5, bookmarkID);
-            pstmt.executeUpdate();
-            pstmt.close();
+            new Editor(true).commit();
         }
         catch (SQLException sqle) {
-            abortTransaction = true;
-            Log.error(sqle.getMessage(), sqle);
-        }
-        finally {
-            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+            throw new IllegalStateException("Unable to create bookmark: " + name, sqle);
         }
     }
 
@@ -700,77 +1031,4 @@ public class Bookmark implements Serializable {
             DbConnectionManager.closeConnection(pstmt, con);
         }
     }
-
-    /**
-     * Inserts a new property into the datatabase.
-     */
-    private void insertPropertyIntoDb(String name, String value) {
-        Log.debug("insertPropertyIntoDb " + name + " " + value);
-
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        boolean abortTransaction = false;
-        try {
-            con = DbConnectionManager.getTransactionConnection();
-            pstmt = con.prepareStatement(INSERT_PROPERTY);
-            pstmt.setLong(1, bookmarkID);
-            pstmt.setString(2, name);
-            pstmt.setString(3, value);
-            pstmt.executeUpdate();
-        }
-        catch (SQLException sqle) {
-            Log.error(sqle.getMessage(), sqle);
-            abortTransaction = true;
-        }
-        finally {
-            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
-        }
-    }
-
-    /**
-     * Updates a property value in the database.
-     */
-    private void updatePropertyInDb(String name, String value) {
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        boolean abortTransaction = false;
-        try {
-            con = DbConnectionManager.getTransactionConnection();
-            pstmt = con.prepareStatement(UPDATE_PROPERTY);
-            pstmt.setString(1, value);
-            pstmt.setString(2, name);
-            pstmt.setLong(3, bookmarkID);
-            pstmt.executeUpdate();
-        }
-        catch (SQLException sqle) {
-            Log.error(sqle.getMessage(), sqle);
-            abortTransaction = true;
-        }
-        finally {
-            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
-        }
-    }
-
-    /**
-     * Deletes a property from the db.
-     */
-    private synchronized void deletePropertyFromDb(String name) {
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        boolean abortTransaction = false;
-        try {
-            con = DbConnectionManager.getTransactionConnection();
-            pstmt = con.prepareStatement(DELETE_PROPERTY);
-            pstmt.setLong(1, bookmarkID);
-            pstmt.setString(2, name);
-            pstmt.execute();
-        }
-        catch (SQLException sqle) {
-            Log.error(sqle.getMessage(), sqle);
-            abortTransaction = true;
-        }
-        finally {
-            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
-        }
-    }
 }
@@ -0,0 +1,154 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.Base64;
+import java.util.Locale;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.util.StringUtils;
+
+/**
+ * The avatar of a group chat bookmark, parsed from the <tt>avatar_uri</tt> property. The
+ * property holds a data URI (eg: <tt>data:image/png;base64,iVBOR...</tt>), which is split
+ * into its MIME type and base64 payload once, when the avatar is created. A vCard element
+ * that holds the avatar is prepared at the same time, so that answering a vCard request
+ * only requires a copy of that element. The decoded image and its SHA-1 hash are kept as
+ * well, for serving the avatar over HTTP. The hash is the one defined by
+ * <a href="http://xmpp.org/extensions/xep-0153.html">XEP-0153</a>, which allows clients
+ * to determine whether an avatar has changed without requesting it.
+ *
+ * @see BookmarkCatalog#getAvatar(long)
+ */
+final class BookmarkAvatar {
+
+    private static final String DATA_PREFIX = "data:";
+    private static final String BASE64_SEPARATOR = ";base64,";
+
+    private final String uri;
+    private final String bookmarkName;
+    private final String mimeType;
+    private final String payload;
+    private final byte[] image;
+    private final String hash;
+    private final Element vCardTemplate;
+
+    private BookmarkAvatar(String uri, String bookmarkName, String mimeType, String payload, byte[] image) {
+        this.uri = uri;
+        this.bookmarkName = bookmarkName;
+        this.mimeType = mimeType;
+        this.payload = payload;
+        this.image = image;
+        this.hash = StringUtils.hash(image, "SHA-1");
+
+        vCardTemplate = DocumentHelper.createElement(QName.get("vCard", "vcard-temp"));
+        vCardTemplate.addElement("FN").setText(bookmarkName);
+        vCardTemplate.addElement("NICKNAME").setText(bookmarkName);
+        final Element photo = vCardTemplate.addElement("PHOTO");
+        photo.addElement("TYPE").setText(mimeType);
+        photo.addElement("BINVAL").setText(payload);
+
+        // Allow clients to cache the avatar by its XEP-0153 hash.
+        vCardTemplate.addElement(QName.get("x", "vcard-temp:x:update")).addElement("photo").setText(hash);
+    }
+
+    /**
+     * Parses the avatar of a bookmark.
+     *
+     * @param bookmark the bookmark.
+     * @return the avatar, or null when the bookmark has no (valid) <tt>avatar_uri</tt> property.
+     */
+    static BookmarkAvatar parse(Bookmark bookmark) {
+        final String uri = bookmark.getProperty("avatar_uri");
+        if (uri == null || !uri.startsWith(DATA_PREFIX)) {
+            return null;
+        }
+        final int separator = uri.indexOf(BASE64_SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        final String mimeType = parseMimeType(uri.substring(DATA_PREFIX.length(), separator));
+        if (mimeType == null) {
+            return null;
+        }
+        final String name = bookmark.getName() == null ? "" : bookmark.getName();
+        final String payload = uri.substring(separator + BASE64_SEPARATOR.length());
+        final byte[] image;
+        try {
+            image = Base64.getMimeDecoder().decode(payload);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        return new BookmarkAvatar(uri, name, mimeType, payload, image);
+    }
+
+    /**
+     * Parses the media type of a data URI, without any parameters.
+     *
+     * @param mediaType the media type of a data URI, eg: <tt>image/png</tt>.
+     * @return the normalized MIME type, or null if the media type is empty.
+     */
+    static String parseMimeType(String mediaType) {
+        final int parameters = mediaType.indexOf(';');
+        final String mimeType = (parameters < 0 ? mediaType : mediaType.substring(0, parameters))
+                .trim().toLowerCase(Locale.ENGLISH);
+        return mimeType.isEmpty() ? null : mimeType;
+    }
+
+    /**
+     * Checks if this avatar was parsed from the current state of a bookmark, in which case
+     * it can be reused rather than parsed again.
+     *
+     * @param bookmark the bookmark.
+     * @return true if this avatar is up to date for the bookmark.
+     */
+    boolean isCurrent(Bookmark bookmark) {
+        return uri.equals(bookmark.getProperty("avatar_uri")) && bookmarkName.equals(bookmark.getName());
+    }
+
+    /**
+     * Returns the MIME type of the avatar image.
+     *
+     * @return the MIME type, eg: <tt>image/png</tt>.
+     */
+    String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the base64 encoded avatar image.
+     *
+     * @return the base64 encoded image.
+     */
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the decoded avatar image. The returned array must not be modified.
+     *
+     * @return the avatar image.
+     */
+    byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the hex-encoded SHA-1 hash of the decoded avatar image, as defined by XEP-0153.
+     *
+     * @return the hash of the avatar image.
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns a new <tt>vCard</tt> element that holds the name and avatar of the bookmark.
+     *
+     * @return a copy of the prepared vCard element.
+     */
+    Element createVCard() {
+        return vCardTemplate.createCopy();
+    }
+}
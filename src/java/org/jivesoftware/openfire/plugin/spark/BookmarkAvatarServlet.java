@@ -0,0 +1,156 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.NotFoundException;
+
+/**
+ * Serves the avatars of group chat bookmarks over HTTP.
+ * <p/>
+ * When enabled (through the <tt>bookmarks.avatar.http.enabled</tt> property), the conference
+ * elements that are added to a user's bookmarks carry a short URL to this servlet instead
+ * of the full data URI of the avatar. The URLs have the form
+ * <tt>&lt;base&gt;/&lt;bookmarkID&gt;/&lt;hash&gt;</tt>, where the hash is the SHA-1 hash of the
+ * image. As a changed avatar results in a different URL, responses can be cached
+ * indefinitely. The base URL can be set with the <tt>bookmarks.avatar.http.baseurl</tt>
+ * property, and defaults to the location of this servlet on the admin console.
+ * <p/>
+ * Requests are not authenticated, so only the avatars of global bookmarks, and of bookmarks
+ * of which the <tt>avatar_public</tt> property is <tt>true</tt>, are served. A request must
+ * also carry the hash of the current avatar, so that avatars cannot be fetched by
+ * enumerating bookmark IDs. Only raster images are served: avatars are served from the
+ * origin of the admin console, where any type that a browser can render as a document
+ * (such as HTML or SVG) could run script. Bookmarks of which the avatar is not served
+ * refer to it by its data URI instead.
+ *
+ * @see BookmarkAvatar
+ */
+public class BookmarkAvatarServlet extends HttpServlet {
+
+    /**
+     * The path, relative to the plugin servlet, under which avatars are served.
+     */
+    public static final String PATH = "bookmarks/avatar/";
+
+    /**
+     * The MIME types of the avatars that are served.
+     */
+    private static final Set<String> MIME_TYPES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("image/png", "image/jpeg", "image/gif", "image/webp")));
+
+    /**
+     * Checks if avatars are served over HTTP, rather than inlined in every conference bookmark.
+     *
+     * @return true if avatars are served over HTTP.
+     */
+    static boolean isEnabled() {
+        return JiveGlobals.getBooleanProperty("bookmarks.avatar.http.enabled", false);
+    }
+
+    /**
+     * Checks if the avatar of a bookmark is served over HTTP.
+     *
+     * @param bookmark the bookmark.
+     * @param avatar   the avatar of the bookmark (can be null).
+     * @return true if the bookmark can refer to its avatar by {@link #getURL(long, BookmarkAvatar) URL}.
+     */
+    static boolean isServed(Bookmark bookmark, BookmarkAvatar avatar) {
+        return avatar != null && isEnabled() && MIME_TYPES.contains(avatar.getMimeType()) && isPublic(bookmark);
+    }
+
+    /**
+     * Checks if a bookmark is available to everybody: either because it is a global bookmark,
+     * or because its avatar has been marked as public.
+     */
+    private static boolean isPublic(Bookmark bookmark) {
+        return bookmark.isGlobalBookmark() || BookmarkFlag.avatar_public.isSet(BookmarkFlag.decode(bookmark));
+    }
+
+    /**
+     * Returns the URL at which an avatar is served.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @param avatar     the avatar of the bookmark.
+     * @return the URL of the avatar, or null if the avatar is not a raster image.
+     */
+    static String getURL(long bookmarkID, BookmarkAvatar avatar) {
+        if (!MIME_TYPES.contains(avatar.getMimeType())) {
+            return null;
+        }
+        String baseURL = JiveGlobals.getProperty("bookmarks.avatar.http.baseurl");
+        if (baseURL == null) {
+            baseURL = "https://" + XMPPServer.getInstance().getServerInfo().getHostname() + ":"
+                    + JiveGlobals.getXMLProperty("adminConsole.securePort", 9091) + "/plugins/" + PATH;
+        }
+        if (!baseURL.endsWith("/")) {
+            baseURL = baseURL + "/";
+        }
+        return baseURL + bookmarkID + "/" + avatar.getHash();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // The last two path segments are the bookmark ID and the hash of the avatar.
+        final String[] segments = request.getRequestURI().split("/");
+        if (segments.length < 2) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final String hash = segments[segments.length - 1];
+        final Bookmark bookmark;
+        try {
+            bookmark = BookmarkManager.getBookmark(Long.parseLong(segments[segments.length - 2]));
+        }
+        catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        catch (NotFoundException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // Respond in the same way to unknown bookmarks, to bookmarks that are not public and
+        // to a wrong hash, so that none of these can be told apart.
+        final BookmarkAvatar avatar = BookmarkManager.getAvatar(bookmark.getBookmarkID());
+        if (!isServed(bookmark, avatar) || !avatar.getHash().equals(hash)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // Avatars are served from the origin of the admin console, so browsers must never
+        // interpret them as anything but an image.
+        response.setHeader("X-Content-Type-Options", "nosniff");
+        response.setHeader("Content-Security-Policy", "default-src 'none'");
+
+        // The URL identifies this exact image, which therefore never changes.
+        final String etag = "\"" + avatar.getHash() + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final byte[] image = avatar.getImage();
+        response.setContentType(avatar.getMimeType());
+        response.setContentLength(image.length);
+        response.getOutputStream().write(image);
+    }
+}
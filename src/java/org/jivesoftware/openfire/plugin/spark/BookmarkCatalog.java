@@ -0,0 +1,409 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of all bookmarks, including their permissions and properties.
+ * <p/>
+ * A catalog is never modified after it has been created. Changes are applied by deriving
+ * a new catalog (see {@link #with(Bookmark)} and {@link #without(long)}), which the
+ * {@link BookmarkManager} then swaps in atomically. Readers can therefore use a catalog
+ * without any locking or database access.
+ * <p/>
+ * Next to the bookmarks themselves, a catalog maintains a reverse index of the
+ * permissions: from username to bookmark IDs, from group name to bookmark IDs, and the
+ * set of global bookmark IDs. Bookmarks are also indexed by their exact value, so that
+ * it can be determined without database access whether an address or URL is a bookmark.
+ * <p/>
+ * Derived data, such as parsed avatars, decoded {@link BookmarkFlag flags} and the
+ * pre-rendered elements of global bookmarks, is computed when a catalog is created. Entries
+ * that have not changed since the catalog that this one was derived from reuse the data
+ * of that catalog. A derived catalog also shares the index entries (the sets of bookmark IDs
+ * of a user, group or value) that the change does not touch with the catalog it was derived
+ * from, so that the cost of a change depends on the number of changed bookmarks rather than
+ * on the number of permissions in the catalog.
+ *
+ * @see BookmarkManager#getCatalog()
+ */
+final class BookmarkCatalog {
+
+    private final long version;
+    private final Map<Long, Bookmark> bookmarks;
+    private final Set<Long> globalBookmarkIDs;
+    private final Map<String, Set<Long>> bookmarkIDsByUser;
+    private final Map<String, Set<Long>> bookmarkIDsByGroup;
+    private final Map<String, Set<Long>> bookmarkIDsByValue;
+    private final Map<Long, BookmarkAvatar> avatars;
+    private final Map<Long, Integer> flags;
+    private final Map<Long, BookmarkFragment> fragments;
+
+    /**
+     * Creates a catalog from the provided bookmarks. The bookmarks are expected to be
+     * detached snapshots (see {@link Bookmark#snapshot()}).
+     *
+     * @param version   the generation number of this catalog.
+     * @param bookmarks the bookmarks that make up the catalog.
+     * @param previous  the catalog of which derived data can be reused (can be null).
+     */
+    BookmarkCatalog(long version, Collection<Bookmark> bookmarks, BookmarkCatalog previous) {
+        this(version, new Builder(null, previous).addAll(bookmarks));
+    }
+
+    private BookmarkCatalog(long version, Builder builder) {
+        this.version = version;
+        this.bookmarks = Collections.unmodifiableMap(builder.bookmarks);
+        this.globalBookmarkIDs = Collections.unmodifiableSet(builder.global);
+        this.bookmarkIDsByUser = builder.byUser.map;
+        this.bookmarkIDsByGroup = builder.byGroup.map;
+        this.bookmarkIDsByValue = builder.byValue.map;
+        this.avatars = builder.avatars;
+        this.flags = builder.flags;
+        this.fragments = builder.fragments;
+    }
+
+    /**
+     * Returns the generation number of this catalog. Each derived catalog has a higher
+     * number than the catalog it was derived from.
+     *
+     * @return the catalog generation number.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the bookmark with the specified ID.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the bookmark, or null when this catalog does not contain it.
+     */
+    Bookmark getBookmark(long bookmarkID) {
+        return bookmarks.get(bookmarkID);
+    }
+
+    /**
+     * Returns the bookmark that has the specified value; either a URL or a conference room
+     * address. Values are compared exactly, as they are when a bookmark is looked up by value
+     * in the database. When several bookmarks have the same value, the one with the lowest
+     * ID is returned.
+     *
+     * @param value the value of the bookmark.
+     * @return the bookmark, or null when this catalog does not contain a bookmark with the value.
+     */
+    Bookmark getBookmarkByValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        final Set<Long> bookmarkIDs = bookmarkIDsByValue.get(value);
+        if (bookmarkIDs == null) {
+            return null;
+        }
+        Long result = null;
+        for (Long bookmarkID : bookmarkIDs) {
+            if (result == null || bookmarkID < result) {
+                result = bookmarkID;
+            }
+        }
+        return result == null ? null : bookmarks.get(result);
+    }
+
+    /**
+     * Returns the parsed avatar of a group chat bookmark.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the avatar, or null when the bookmark does not have one.
+     */
+    BookmarkAvatar getAvatar(long bookmarkID) {
+        return avatars.get(bookmarkID);
+    }
+
+    /**
+     * Returns the decoded boolean properties of a bookmark.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the bit mask of the {@link BookmarkFlag flags} that are set.
+     */
+    int getFlags(long bookmarkID) {
+        final Integer result = flags.get(bookmarkID);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Returns the pre-rendered element of a global bookmark.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the fragment, or null when the bookmark is not a global bookmark.
+     */
+    BookmarkFragment getFragment(long bookmarkID) {
+        return fragments.get(bookmarkID);
+    }
+
+    /**
+     * Returns all bookmarks in this catalog, ordered by bookmark ID.
+     *
+     * @return an unmodifiable collection of bookmarks.
+     */
+    Collection<Bookmark> getBookmarks() {
+        return bookmarks.values();
+    }
+
+    /**
+     * Returns the IDs of all bookmarks that apply to all users.
+     *
+     * @return an unmodifiable set of bookmark IDs.
+     */
+    Set<Long> getGlobalBookmarkIDs() {
+        return globalBookmarkIDs;
+    }
+
+    /**
+     * Returns the IDs of all bookmarks that have been assigned to a user directly.
+     *
+     * @param username the name of the user.
+     * @return an unmodifiable set of bookmark IDs, possibly empty.
+     */
+    Set<Long> getBookmarkIDsForUser(String username) {
+        return unmodifiable(bookmarkIDsByUser.get(username));
+    }
+
+    /**
+     * Returns the IDs of all bookmarks that have been assigned to a group.
+     *
+     * @param groupName the name of the group.
+     * @return an unmodifiable set of bookmark IDs, possibly empty.
+     */
+    Set<Long> getBookmarkIDsForGroup(String groupName) {
+        return unmodifiable(bookmarkIDsByGroup.get(groupName));
+    }
+
+    private static Set<Long> unmodifiable(Set<Long> ids) {
+        return ids == null ? Collections.<Long>emptySet() : Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Returns a new catalog in which the provided bookmark has been added, or replaces
+     * the bookmark with the same ID.
+     *
+     * @param bookmark a detached bookmark snapshot.
+     * @return the new catalog.
+     */
+    BookmarkCatalog with(Bookmark bookmark) {
+        return with(Collections.singleton(bookmark));
+    }
+
+    /**
+     * Returns a new catalog in which the provided bookmarks have been added, or replace the
+     * bookmarks with the same IDs.
+     *
+     * @param changed detached bookmark snapshots.
+     * @return the new catalog.
+     */
+    BookmarkCatalog with(Collection<Bookmark> changed) {
+        return new BookmarkCatalog(version + 1, new Builder(this, this).addAll(changed));
+    }
+
+    /**
+     * Returns a new catalog from which the bookmark with the specified ID has been removed.
+     *
+     * @param bookmarkID the ID of the bookmark to remove.
+     * @return the new catalog.
+     */
+    BookmarkCatalog without(long bookmarkID) {
+        return without(Collections.singleton(bookmarkID));
+    }
+
+    /**
+     * Returns a new catalog from which the bookmarks with the specified IDs have been removed.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks to remove.
+     * @return the new catalog.
+     */
+    BookmarkCatalog without(Collection<Long> bookmarkIDs) {
+        final Builder builder = new Builder(this, this);
+        for (Long bookmarkID : bookmarkIDs) {
+            builder.remove(bookmarkID);
+        }
+        return new BookmarkCatalog(version + 1, builder);
+    }
+
+    /**
+     * Collects the content of a new catalog. A builder starts out as a shallow copy of an
+     * existing catalog (or empty), to which bookmarks are then added, or from which they are
+     * removed.
+     */
+    private static final class Builder {
+
+        private final BookmarkCatalog previous;
+        private final Map<Long, Bookmark> bookmarks;
+        private final Set<Long> global;
+        private final Index byUser;
+        private final Index byGroup;
+        private final Index byValue;
+        private final Map<Long, BookmarkAvatar> avatars;
+        private final Map<Long, Integer> flags;
+        private final Map<Long, BookmarkFragment> fragments;
+
+        /**
+         * @param base     the catalog to start from, or null to start from an empty catalog.
+         * @param previous the catalog of which derived data can be reused (can be null).
+         */
+        Builder(BookmarkCatalog base, BookmarkCatalog previous) {
+            this.previous = previous;
+            if (base == null) {
+                bookmarks = new LinkedHashMap<Long, Bookmark>();
+                global = new HashSet<Long>();
+                byUser = new Index(Collections.<String, Set<Long>>emptyMap());
+                byGroup = new Index(Collections.<String, Set<Long>>emptyMap());
+                byValue = new Index(Collections.<String, Set<Long>>emptyMap());
+                avatars = new HashMap<Long, BookmarkAvatar>();
+                flags = new HashMap<Long, Integer>();
+                fragments = new HashMap<Long, BookmarkFragment>();
+            }
+            else {
+                bookmarks = new LinkedHashMap<Long, Bookmark>(base.bookmarks);
+                global = new HashSet<Long>(base.globalBookmarkIDs);
+                byUser = new Index(base.bookmarkIDsByUser);
+                byGroup = new Index(base.bookmarkIDsByGroup);
+                byValue = new Index(base.bookmarkIDsByValue);
+                avatars = new HashMap<Long, BookmarkAvatar>(base.avatars);
+                flags = new HashMap<Long, Integer>(base.flags);
+                fragments = new HashMap<Long, BookmarkFragment>(base.fragments);
+            }
+        }
+
+        Builder addAll(Collection<Bookmark> added) {
+            for (Bookmark bookmark : added) {
+                add(bookmark);
+            }
+            return this;
+        }
+
+        /**
+         * Adds a bookmark, or replaces the bookmark with the same ID. A replaced bookmark
+         * keeps its position in the order of the catalog.
+         */
+        void add(Bookmark bookmark) {
+            final long bookmarkID = bookmark.getBookmarkID();
+            final Bookmark replaced = bookmarks.put(bookmarkID, bookmark);
+            if (replaced != null) {
+                unindex(replaced);
+            }
+
+            final boolean unchanged = previous != null && previous.getBookmark(bookmarkID) == bookmark;
+            flags.put(bookmarkID, unchanged ? previous.getFlags(bookmarkID) : BookmarkFlag.decode(bookmark));
+
+            final BookmarkAvatar previousAvatar = previous == null ? null : previous.getAvatar(bookmarkID);
+            if (previousAvatar != null && previousAvatar.isCurrent(bookmark)) {
+                avatars.put(bookmarkID, previousAvatar);
+            }
+            else if (bookmark.getType() == Bookmark.Type.group_chat && bookmark.getProperty("avatar_uri") != null) {
+                final BookmarkAvatar parsed = BookmarkAvatar.parse(bookmark);
+                if (parsed != null) {
+                    avatars.put(bookmarkID, parsed);
+                }
+            }
+
+            if (bookmark.getValue() != null) {
+                byValue.add(bookmark.getValue(), bookmarkID);
+            }
+            byUser.addAll(bookmark.getUsers(), bookmarkID);
+            byGroup.addAll(bookmark.getGroups(), bookmarkID);
+
+            if (bookmark.isGlobalBookmark()) {
+                global.add(bookmarkID);
+                final BookmarkFragment fragment = previous == null ? null : previous.getFragment(bookmarkID);
+                if (fragment != null && unchanged && previous.getAvatar(bookmarkID) == avatars.get(bookmarkID)) {
+                    fragments.put(bookmarkID, fragment);
+                }
+                else {
+                    fragments.put(bookmarkID, BookmarkFragment.create(bookmark, flags.get(bookmarkID), avatars.get(bookmarkID)));
+                }
+            }
+        }
+
+        void remove(long bookmarkID) {
+            final Bookmark removed = bookmarks.remove(bookmarkID);
+            if (removed != null) {
+                unindex(removed);
+            }
+        }
+
+        private void unindex(Bookmark bookmark) {
+            final long bookmarkID = bookmark.getBookmarkID();
+            global.remove(bookmarkID);
+            if (bookmark.getValue() != null) {
+                byValue.remove(bookmark.getValue(), bookmarkID);
+            }
+            byUser.removeAll(bookmark.getUsers(), bookmarkID);
+            byGroup.removeAll(bookmark.getGroups(), bookmarkID);
+            avatars.remove(bookmarkID);
+            flags.remove(bookmarkID);
+            fragments.remove(bookmarkID);
+        }
+    }
+
+    /**
+     * A copy-on-write index from a name to bookmark IDs. The sets of IDs are shared with the
+     * index that this one was copied from, until they are changed: the first change to a set
+     * replaces it with a private copy, which later changes to the same set then reuse.
+     */
+    private static final class Index {
+
+        private final Map<String, Set<Long>> map;
+        private final Set<String> copied = new HashSet<String>();
+
+        Index(Map<String, Set<Long>> source) {
+            map = new HashMap<String, Set<Long>>(source);
+        }
+
+        void addAll(Collection<String> names, long bookmarkID) {
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                add(name, bookmarkID);
+            }
+        }
+
+        void add(String name, long bookmarkID) {
+            getCopy(name).add(bookmarkID);
+        }
+
+        void removeAll(Collection<String> names, long bookmarkID) {
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                remove(name, bookmarkID);
+            }
+        }
+
+        void remove(String name, long bookmarkID) {
+            final Set<Long> bookmarkIDs = map.get(name);
+            if (bookmarkIDs == null || !bookmarkIDs.contains(bookmarkID)) {
+                return;
+            }
+            final Set<Long> copy = getCopy(name);
+            copy.remove(bookmarkID);
+            if (copy.isEmpty()) {
+                map.remove(name);
+            }
+        }
+
+        private Set<Long> getCopy(String name) {
+            Set<Long> bookmarkIDs = map.get(name);
+            if (bookmarkIDs == null || copied.add(name)) {
+                bookmarkIDs = bookmarkIDs == null ? new HashSet<Long>() : new HashSet<Long>(bookmarkIDs);
+                map.put(name, bookmarkIDs);
+                copied.add(name);
+            }
+            return bookmarkIDs;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+/**
+ * Applies a change to the bookmarks on the other nodes of a cluster. Every node keeps its own
+ * {@link BookmarkCatalog} and its own cache of the bookmarks that were resolved for users, so
+ * the node on which a bookmark is changed, or on which a group event is dispatched, sends
+ * this task to all other nodes to keep theirs up to date. Changed bookmarks are reloaded
+ * from the database rather than sent along with the task.
+ * <p/>
+ * Tasks are sent with {@link CacheFactory#doClusterTask(ClusterTask)}, which does nothing
+ * when clustering is not enabled.
+ */
+public class BookmarkClusterTask implements ClusterTask<Void> {
+
+    private enum Action {
+        reloadCatalog, reloadBookmarks, removeBookmarks, evictUsers, groupMembershipChanged
+    }
+
+    private Action action;
+    private final List<Long> bookmarkIDs = new ArrayList<Long>();
+    private final List<String> usernames = new ArrayList<String>();
+
+    /**
+     * Creates an empty task, of which the state is read with {@link #readExternal(ObjectInput)}.
+     */
+    public BookmarkClusterTask() {
+    }
+
+    private BookmarkClusterTask(Action action, Collection<Long> bookmarkIDs, Collection<String> usernames) {
+        this.action = action;
+        this.bookmarkIDs.addAll(bookmarkIDs);
+        this.usernames.addAll(usernames);
+    }
+
+    /**
+     * Reloads the catalog on the other nodes.
+     *
+     * @see BookmarkManager#reloadCatalog()
+     */
+    static void reloadCatalog() {
+        send(Action.reloadCatalog, Collections.<Long>emptyList(), Collections.<String>emptyList());
+    }
+
+    /**
+     * Reloads bookmarks that have been added or changed on the other nodes.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks.
+     */
+    static void reloadBookmarks(Collection<Long> bookmarkIDs) {
+        send(Action.reloadBookmarks, bookmarkIDs, Collections.<String>emptyList());
+    }
+
+    /**
+     * Removes bookmarks that have been deleted from the catalogs of the other nodes.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks.
+     */
+    static void removeBookmarks(Collection<Long> bookmarkIDs) {
+        send(Action.removeBookmarks, bookmarkIDs, Collections.<String>emptyList());
+    }
+
+    /**
+     * Invalidates the bookmarks that were resolved for users on the other nodes.
+     *
+     * @param usernames the names of the users.
+     */
+    static void evictUsers(Collection<String> usernames) {
+        send(Action.evictUsers, Collections.<Long>emptyList(), usernames);
+    }
+
+    /**
+     * Invalidates the bookmarks that were resolved for all users on the other nodes, after
+     * the membership of a group has changed in an unknown way.
+     */
+    static void groupMembershipChanged() {
+        send(Action.groupMembershipChanged, Collections.<Long>emptyList(), Collections.<String>emptyList());
+    }
+
+    private static void send(Action action, Collection<Long> bookmarkIDs, Collection<String> usernames) {
+        if (action != Action.reloadCatalog && action != Action.groupMembershipChanged
+                && bookmarkIDs.isEmpty() && usernames.isEmpty()) {
+            return;
+        }
+        CacheFactory.doClusterTask(new BookmarkClusterTask(action, bookmarkIDs, usernames));
+    }
+
+    @Override
+    public Void getResult() {
+        return null;
+    }
+
+    @Override
+    public void run() {
+        switch (action) {
+            case reloadCatalog:
+                BookmarkManager.reloadCatalogLocally();
+                break;
+            case reloadBookmarks:
+                BookmarkManager.reloadBookmarksLocally(bookmarkIDs);
+                break;
+            case removeBookmarks:
+                BookmarkManager.removeBookmarksLocally(bookmarkIDs);
+                break;
+            case evictUsers:
+                BookmarkManager.evictUsersLocally(usernames);
+                break;
+            case groupMembershipChanged:
+                BookmarkManager.groupMembershipChangedLocally();
+                break;
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        util.writeSafeUTF(out, action.name());
+        util.writeInt(out, bookmarkIDs.size());
+        for (Long bookmarkID : bookmarkIDs) {
+            util.writeLong(out, bookmarkID);
+        }
+        util.writeStrings(out, usernames);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        action = Action.valueOf(util.readSafeUTF(in));
+        final int count = util.readInt(in);
+        for (int i = 0; i < count; i++) {
+            bookmarkIDs.add(util.readLong(in));
+        }
+        util.readStrings(in, usernames);
+    }
+}
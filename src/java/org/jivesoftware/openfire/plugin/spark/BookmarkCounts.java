@@ -0,0 +1,68 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The number of bookmarks of each type, as counted by the database.
+ *
+ * @see BookmarkManager#getBookmarkCounts()
+ */
+public class BookmarkCounts {
+
+    private final Map<Bookmark.Type, Integer> globalCounts = new EnumMap<Bookmark.Type, Integer>(Bookmark.Type.class);
+    private final Map<Bookmark.Type, Integer> targetedCounts = new EnumMap<Bookmark.Type, Integer>(Bookmark.Type.class);
+
+    void add(Bookmark.Type type, boolean global, int count) {
+        final Map<Bookmark.Type, Integer> counts = global ? globalCounts : targetedCounts;
+        counts.put(type, get(counts, type) + count);
+    }
+
+    private static int get(Map<Bookmark.Type, Integer> counts, Bookmark.Type type) {
+        final Integer count = counts.get(type);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the number of bookmarks of a type.
+     *
+     * @param type the type of the bookmarks.
+     * @return the number of bookmarks.
+     */
+    public int getCount(Bookmark.Type type) {
+        return getGlobalCount(type) + getTargetedCount(type);
+    }
+
+    /**
+     * Returns the number of global bookmarks of a type, which apply to all users.
+     *
+     * @param type the type of the bookmarks.
+     * @return the number of global bookmarks.
+     */
+    public int getGlobalCount(Bookmark.Type type) {
+        return get(globalCounts, type);
+    }
+
+    /**
+     * Returns the number of bookmarks of a type that apply to specific users and groups only.
+     *
+     * @param type the type of the bookmarks.
+     * @return the number of targeted bookmarks.
+     */
+    public int getTargetedCount(Bookmark.Type type) {
+        return get(targetedCounts, type);
+    }
+
+    /**
+     * Returns the total number of bookmarks.
+     *
+     * @return the number of bookmarks of all types.
+     */
+    public int getTotal() {
+        int total = 0;
+        for (Bookmark.Type type : Bookmark.Type.values()) {
+            total += getCount(type);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,38 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Downloads all bookmarks as an XML or JSON document, as written by
+ * {@link BookmarkManager#exportBookmarks}. The format is determined by the <tt>format</tt>
+ * parameter of the request, which is either <tt>xml</tt> (the default) or <tt>json</tt>.
+ * <p/>
+ * This servlet is only available to administrators.
+ *
+ * @see BookmarkExporter
+ */
+public class BookmarkExportServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final BookmarkImporter.Format format;
+        try {
+            final String parameter = request.getParameter("format");
+            format = parameter == null ? BookmarkImporter.Format.xml : BookmarkImporter.Format.valueOf(parameter);
+        }
+        catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setContentType(format == BookmarkImporter.Format.json ? "application/json" : "application/xml");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"bookmarks." + format + "\"");
+        response.setHeader("Cache-Control", "no-cache");
+        BookmarkManager.exportBookmarks(response.getOutputStream(), format);
+    }
+}
@@ -0,0 +1,311 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports all bookmarks, including their permissions and properties, as an XML or JSON
+ * document in the format that is read by {@link BookmarkImporter}.
+ * <p/>
+ * Bookmarks are read in chunks of {@link #CHUNK_SIZE} bookmarks, ordered by bookmark ID,
+ * followed by the permissions and properties of the bookmarks in the chunk. Each chunk is
+ * written before the next one is read, so that no more than one chunk is held in memory,
+ * however large the catalog is. As every result set is limited to one chunk, this does not
+ * depend on the driver streaming results (MySQL Connector/J, for instance, reads an entire
+ * result set into memory unless it is told otherwise).
+ * <p/>
+ * All chunks are read on one connection, in one transaction. On MySQL, PostgreSQL and Oracle
+ * the transaction reads a consistent snapshot of the database. Other databases don't offer
+ * snapshots without locking out writers for the whole download, so an export that is taken
+ * while bookmarks are being changed may hold some of those changes and not others.
+ *
+ * @see BookmarkManager#exportBookmarks(OutputStream, BookmarkImporter.Format)
+ */
+class BookmarkExporter {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkExporter.class);
+
+    private static final String EXPORT_BOOKMARKS =
+            "SELECT bookmarkID, bookmarkType, bookmarkName, bookmarkValue, isGlobal FROM ofBookmark " +
+                    "WHERE bookmarkID>? ORDER BY bookmarkID";
+    private static final String EXPORT_PERMISSIONS =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm WHERE bookmarkID>=? AND bookmarkID<=? " +
+                    "ORDER BY bookmarkID, bookmarkType, name";
+    private static final String EXPORT_PROPERTIES =
+            "SELECT bookmarkID, name, propValue FROM ofBookmarkProp WHERE bookmarkID>=? AND bookmarkID<=? " +
+                    "ORDER BY bookmarkID, name";
+
+    static final int CHUNK_SIZE = 500;
+
+    /**
+     * Writes the export document.
+     *
+     * @param out    the stream to write the document to.
+     * @param format the format of the document.
+     * @throws IOException if the bookmarks could not be read or written.
+     */
+    void export(OutputStream out, BookmarkImporter.Format format) throws IOException {
+        Connection con = null;
+        int isolation = -1;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            isolation = beginSnapshot(con);
+            final Chunks chunks = new Chunks(con);
+            if (format == BookmarkImporter.Format.json) {
+                final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writeJSON(new JSONWriter(writer), chunks);
+                writer.flush();
+            }
+            else {
+                final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+                writeXML(writer, chunks);
+                writer.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new IOException("Unable to read the bookmarks.", e);
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Unable to write the bookmarks.", e);
+        }
+        catch (JSONException e) {
+            throw new IOException("Unable to write the bookmarks.", e);
+        }
+        finally {
+            if (con != null) {
+                endSnapshot(con, isolation);
+                DbConnectionManager.closeTransactionConnection(con, false);
+            }
+        }
+    }
+
+    /**
+     * Raises the isolation level of the transaction to one that reads a consistent snapshot,
+     * on the databases where that doesn't block writers.
+     *
+     * @param con the connection, of which the transaction has not started yet.
+     * @return the original isolation level, or -1 if it was not changed.
+     */
+    private static int beginSnapshot(Connection con) throws SQLException {
+        final int snapshot;
+        switch (DbConnectionManager.getDatabaseType()) {
+            case mysql:
+            case postgresql:
+                snapshot = Connection.TRANSACTION_REPEATABLE_READ;
+                break;
+            case oracle:
+                snapshot = Connection.TRANSACTION_SERIALIZABLE;
+                break;
+            default:
+                return -1;
+        }
+        final int isolation = con.getTransactionIsolation();
+        con.setTransactionIsolation(snapshot);
+        return isolation;
+    }
+
+    /**
+     * Ends the (read-only) transaction, and restores the original isolation level before the
+     * connection is returned to the pool.
+     */
+    private static void endSnapshot(Connection con, int isolation) {
+        if (isolation == -1) {
+            return;
+        }
+        try {
+            con.rollback();
+            con.setTransactionIsolation(isolation);
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+    }
+
+    private static void writeXML(XMLStreamWriter xml, Chunks chunks) throws SQLException, XMLStreamException {
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeStartElement("bookmarks");
+        for (List<Record> chunk = chunks.next(); !chunk.isEmpty(); chunk = chunks.next()) {
+            for (Record record : chunk) {
+                xml.writeStartElement("bookmark");
+                writeXMLElement(xml, "bookmarkID", Long.toString(record.bookmarkID));
+                writeXMLElement(xml, "type", record.type);
+                writeXMLElement(xml, "name", record.name);
+                writeXMLElement(xml, "value", record.value);
+                writeXMLElement(xml, "globalBookmark", Boolean.toString(record.global));
+                for (String username : record.users) {
+                    writeXMLElement(xml, "users", username);
+                }
+                for (String groupName : record.groups) {
+                    writeXMLElement(xml, "groups", groupName);
+                }
+                if (!record.properties.isEmpty()) {
+                    xml.writeStartElement("properties");
+                    for (Map.Entry<String, String> property : record.properties.entrySet()) {
+                        xml.writeStartElement("entry");
+                        writeXMLElement(xml, "key", property.getKey());
+                        writeXMLElement(xml, "value", property.getValue());
+                        xml.writeEndElement();
+                    }
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+            }
+        }
+        xml.writeEndElement();
+        xml.writeEndDocument();
+    }
+
+    private static void writeXMLElement(XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+        xml.writeStartElement(name);
+        if (text != null) {
+            xml.writeCharacters(text);
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeJSON(JSONWriter json, Chunks chunks) throws SQLException {
+        json.array();
+        for (List<Record> chunk = chunks.next(); !chunk.isEmpty(); chunk = chunks.next()) {
+            for (Record record : chunk) {
+                json.object()
+                        .key("bookmarkID").value(record.bookmarkID)
+                        .key("type").value(record.type)
+                        .key("name").value(record.name)
+                        .key("value").value(record.value)
+                        .key("globalBookmark").value(record.global);
+                json.key("users").array();
+                for (String username : record.users) {
+                    json.value(username);
+                }
+                json.endArray();
+                json.key("groups").array();
+                for (String groupName : record.groups) {
+                    json.value(groupName);
+                }
+                json.endArray();
+                json.key("properties").object();
+                for (Map.Entry<String, String> property : record.properties.entrySet()) {
+                    json.key(property.getKey()).value(property.getValue());
+                }
+                json.endObject();
+                json.endObject();
+            }
+        }
+        json.endArray();
+    }
+
+    /**
+     * Reads the bookmarks one chunk at a time, on one connection.
+     */
+    private static class Chunks {
+
+        private final Connection con;
+        private long lastBookmarkID = Long.MIN_VALUE;
+
+        Chunks(Connection con) {
+            this.con = con;
+        }
+
+        /**
+         * Reads the next chunk of bookmarks, with their permissions and properties.
+         *
+         * @return the bookmarks, ordered by ID, or an empty list when all have been read.
+         */
+        List<Record> next() throws SQLException {
+            final Map<Long, Record> records = new LinkedHashMap<Long, Record>();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                pstmt = con.prepareStatement(EXPORT_BOOKMARKS);
+                DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, CHUNK_SIZE);
+                pstmt.setLong(1, lastBookmarkID);
+                rs = pstmt.executeQuery();
+                while (rs.next() && records.size() < CHUNK_SIZE) {
+                    final Record record = new Record(rs.getLong(1), rs.getString(2), rs.getString(3),
+                            rs.getString(4), rs.getInt(5) == 1);
+                    records.put(record.bookmarkID, record);
+                    lastBookmarkID = record.bookmarkID;
+                }
+                DbConnectionManager.fastcloseStmt(rs, pstmt);
+                rs = null;
+                if (records.isEmpty()) {
+                    return new ArrayList<Record>();
+                }
+                final long firstBookmarkID = records.keySet().iterator().next();
+
+                // Permissions are ordered by type, so users are read before groups.
+                pstmt = con.prepareStatement(EXPORT_PERMISSIONS);
+                pstmt.setLong(1, firstBookmarkID);
+                pstmt.setLong(2, lastBookmarkID);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final Record record = records.get(rs.getLong(1));
+                    if (record != null) {
+                        (rs.getInt(2) == Bookmark.USERS ? record.users : record.groups).add(rs.getString(3));
+                    }
+                }
+                DbConnectionManager.fastcloseStmt(rs, pstmt);
+                rs = null;
+
+                pstmt = con.prepareStatement(EXPORT_PROPERTIES);
+                pstmt.setLong(1, firstBookmarkID);
+                pstmt.setLong(2, lastBookmarkID);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final Record record = records.get(rs.getLong(1));
+                    if (record != null) {
+                        record.properties.put(rs.getString(2), rs.getString(3));
+                    }
+                }
+            }
+            finally {
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+            return new ArrayList<Record>(records.values());
+        }
+    }
+
+    /**
+     * The columns of a bookmark as they are stored, which are written without interpretation.
+     */
+    private static class Record {
+
+        final long bookmarkID;
+        final String type;
+        final String name;
+        final String value;
+        final boolean global;
+        final List<String> users = new ArrayList<String>();
+        final List<String> groups = new ArrayList<String>();
+        final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+        Record(long bookmarkID, String type, String name, String value, boolean global) {
+            this.bookmarkID = bookmarkID;
+            this.type = type;
+            this.name = name;
+            this.value = value;
+            this.global = global;
+        }
+    }
+}
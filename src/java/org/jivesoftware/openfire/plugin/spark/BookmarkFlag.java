@@ -0,0 +1,105 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import org.dom4j.Element;
+
+/**
+ * The known boolean properties of bookmarks. A property is set when its value is
+ * <tt>true</tt>. The properties of a bookmark are decoded into a bit mask once, when the
+ * bookmark is added to the {@link BookmarkCatalog}, so that adding the bookmark to a
+ * user's bookmarks does not require the properties to be looked up and parsed again.
+ * <p/>
+ * Most properties are reflected as an attribute (with the same name and the value
+ * <tt>true</tt>) of the url or conference element of the bookmark, which is written by
+ * {@link #addAttributes(int, Bookmark.Type, Element)}. The other properties affect the
+ * element in a different way.
+ */
+enum BookmarkFlag {
+
+    // URL bookmarks. RSS isn't an official part of the Bookmark JEP, but we define it
+    // as a logical extension.
+    rss(Bookmark.Type.url, true),
+    webapp(Bookmark.Type.url, true),
+    collabapp(Bookmark.Type.url, true),
+    homepage(Bookmark.Type.url, true),
+
+    // Group chat bookmarks.
+    autojoin(Bookmark.Type.group_chat, false),
+    nameasnick(Bookmark.Type.group_chat, false),
+    ofmeet_recording(Bookmark.Type.group_chat, true),
+    ofmeet_tags(Bookmark.Type.group_chat, true),
+    ofmeet_cryptpad(Bookmark.Type.group_chat, true),
+    ofmeet_captions(Bookmark.Type.group_chat, true),
+    ofmeet_transcription(Bookmark.Type.group_chat, true),
+    ofmeet_uploads(Bookmark.Type.group_chat, true),
+    ofmeet_breakout(Bookmark.Type.group_chat, true),
+
+    // Allows the avatar of a group chat bookmark that is not global to be served over HTTP.
+    avatar_public(Bookmark.Type.group_chat, false);
+
+    private static final BookmarkFlag[] FLAGS = values();
+    private static final int URL_ATTRIBUTES = attributeMask(Bookmark.Type.url);
+    private static final int GROUP_CHAT_ATTRIBUTES = attributeMask(Bookmark.Type.group_chat);
+
+    private final Bookmark.Type type;
+    private final boolean attribute;
+    private final int mask;
+
+    BookmarkFlag(Bookmark.Type type, boolean attribute) {
+        this.type = type;
+        this.attribute = attribute;
+        this.mask = 1 << ordinal();
+    }
+
+    private static int attributeMask(Bookmark.Type type) {
+        int result = 0;
+        for (BookmarkFlag flag : values()) {
+            if (flag.type == type && flag.attribute) {
+                result |= flag.mask;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if this flag is set in a bit mask.
+     *
+     * @param flags the bit mask, as returned by {@link #decode(Bookmark)}.
+     * @return true if this flag is set.
+     */
+    boolean isSet(int flags) {
+        return (flags & mask) != 0;
+    }
+
+    /**
+     * Decodes the known boolean properties of a bookmark into a bit mask.
+     *
+     * @param bookmark the bookmark.
+     * @return the bit mask of the flags that are set.
+     */
+    static int decode(Bookmark bookmark) {
+        int flags = 0;
+        for (BookmarkFlag flag : FLAGS) {
+            if (Boolean.valueOf(bookmark.getProperty(flag.name()))) {
+                flags |= flag.mask;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Adds an attribute to a bookmark element for each flag that is set and that is
+     * reflected as an attribute.
+     *
+     * @param flags   the bit mask, as returned by {@link #decode(Bookmark)}.
+     * @param type    the type of the bookmark.
+     * @param element the url or conference element.
+     */
+    static void addAttributes(int flags, Bookmark.Type type, Element element) {
+        int remaining = flags & (type == Bookmark.Type.url ? URL_ATTRIBUTES : GROUP_CHAT_ATTRIBUTES);
+        while (remaining != 0) {
+            final int index = Integer.numberOfTrailingZeros(remaining);
+            element.addAttribute(FLAGS[index].name(), "true");
+            remaining &= remaining - 1;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+/**
+ * A pre-rendered url or conference element of a bookmark, as it is added to the private
+ * storage of users. The element holds everything that is the same for every user; the
+ * nickname (for bookmarks that use the name of the user as nickname) and the avatar URI
+ * (which depends on whether avatars are served over HTTP) are added to each copy.
+ * <p/>
+ * Global bookmarks are identical for all users. Their fragments are therefore rendered
+ * once by the {@link BookmarkCatalog}, and copied for each user.
+ */
+final class BookmarkFragment {
+
+    private static final String NAMESPACE = "storage:bookmarks";
+
+    private final Element template;
+
+    private BookmarkFragment(Element template) {
+        this.template = template;
+    }
+
+    /**
+     * Creates a fragment for a bookmark.
+     *
+     * @param bookmark the bookmark.
+     * @param flags    the decoded boolean properties of the bookmark.
+     * @param avatar   the avatar of the bookmark (can be null).
+     * @return the fragment.
+     */
+    static BookmarkFragment create(Bookmark bookmark, int flags, BookmarkAvatar avatar) {
+        return new BookmarkFragment(render(bookmark, flags, avatar));
+    }
+
+    /**
+     * Renders the url or conference element of a bookmark.
+     *
+     * @param bookmark the bookmark.
+     * @param flags    the decoded boolean properties of the bookmark.
+     * @param avatar   the avatar of the bookmark (can be null).
+     * @return a new, detached element.
+     */
+    static Element render(Bookmark bookmark, int flags, BookmarkAvatar avatar) {
+        final Element element;
+        if (bookmark.getType() == Bookmark.Type.url) {
+            element = DocumentHelper.createElement(QName.get("url", NAMESPACE));
+            element.addAttribute("name", bookmark.getName());
+            element.addAttribute("url", bookmark.getValue());
+            BookmarkFlag.addAttributes(flags, Bookmark.Type.url, element);
+        }
+        else {
+            element = DocumentHelper.createElement(QName.get("conference", NAMESPACE));
+            element.addAttribute("name", bookmark.getName());
+            element.addAttribute("autojoin", Boolean.toString(BookmarkFlag.autojoin.isSet(flags)));
+            element.addAttribute("jid", bookmark.getValue());
+            if (avatar != null) {
+                // The XEP-0153 hash allows clients to skip requesting avatars that they already have.
+                element.addAttribute("avatar_hash", avatar.getHash());
+            }
+            BookmarkFlag.addAttributes(flags, Bookmark.Type.group_chat, element);
+        }
+        return element;
+    }
+
+    /**
+     * Returns a new copy of the pre-rendered element.
+     *
+     * @return a new, detached element.
+     */
+    Element createElement() {
+        return template.createCopy();
+    }
+}
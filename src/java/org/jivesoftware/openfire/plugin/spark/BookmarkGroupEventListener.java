@@ -0,0 +1,82 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.Map;
+
+import org.jivesoftware.openfire.event.GroupEventDispatcher;
+import org.jivesoftware.openfire.event.GroupEventListener;
+import org.jivesoftware.openfire.group.Group;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Listens for changes to groups, to keep the bookmarks that have been resolved for users
+ * of those groups up to date. Only the users that are affected by a change have their
+ * resolved bookmarks invalidated; renamed groups have their bookmark permissions moved
+ * to the new name, and deleted groups have them removed.
+ *
+ * @see BookmarkManager#groupMemberChanged(String, JID)
+ */
+public class BookmarkGroupEventListener implements GroupEventListener {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkGroupEventListener.class);
+
+    /**
+     * Add this listener to the group event dispatcher.
+     */
+    public void start() {
+        GroupEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Remove this listener from the group event dispatcher.
+     */
+    public void stop() {
+        GroupEventDispatcher.removeListener(this);
+    }
+
+    public void groupCreated(Group group, Map params) {
+        // A new group cannot have been assigned any bookmarks yet.
+    }
+
+    public void groupDeleting(Group group, Map params) {
+        BookmarkManager.groupDeleting(group);
+    }
+
+    public void groupModified(Group group, Map params) {
+        if ("nameModified".equals(params.get("type"))) {
+            BookmarkManager.groupRenamed((String) params.get("originalValue"), group);
+        }
+    }
+
+    public void memberAdded(Group group, Map params) {
+        memberChanged(group, params.get("member"));
+    }
+
+    public void memberRemoved(Group group, Map params) {
+        memberChanged(group, params.get("member"));
+    }
+
+    public void adminAdded(Group group, Map params) {
+        memberChanged(group, params.get("admin"));
+    }
+
+    public void adminRemoved(Group group, Map params) {
+        memberChanged(group, params.get("admin"));
+    }
+
+    private static void memberChanged(Group group, Object member) {
+        if (member == null) {
+            // The affected user is unknown: invalidate the bookmarks of everyone.
+            BookmarkManager.groupMembershipChanged();
+            return;
+        }
+        try {
+            BookmarkManager.groupMemberChanged(group.getName(), new JID(member.toString()));
+        }
+        catch (IllegalArgumentException e) {
+            Log.debug("Unable to parse group member address: " + member, e);
+            BookmarkManager.groupMembershipChanged();
+        }
+    }
+}
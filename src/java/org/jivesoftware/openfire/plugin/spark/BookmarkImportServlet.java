@@ -0,0 +1,49 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Imports the bookmarks of an XML or JSON document that is posted as the body of a request.
+ * The body is read as a stream, and handed to {@link BookmarkManager#importBookmarks}. The
+ * format is determined by the content type of the request, which must be
+ * <tt>application/json</tt>, <tt>application/xml</tt> or <tt>text/xml</tt>.
+ * <p/>
+ * This servlet is only available to administrators. As browsers don't post these content
+ * types across sites without the consent of this server, other sites can't have the browser
+ * of an administrator import bookmarks.
+ *
+ * @see BookmarkImporter
+ */
+public class BookmarkImportServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        final BookmarkImporter.Format format;
+        if (contentType.startsWith("application/json")) {
+            format = BookmarkImporter.Format.json;
+        }
+        else if (contentType.startsWith("application/xml") || contentType.startsWith("text/xml")) {
+            format = BookmarkImporter.Format.xml;
+        }
+        else {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+
+        final BookmarkImporter.Result result = BookmarkManager.importBookmarks(request.getInputStream(), format);
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final PrintWriter writer = response.getWriter();
+        writer.println(result);
+        for (String error : result.getErrors()) {
+            writer.println(error);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.JiveID;
+import org.jivesoftware.util.JiveGlobals;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports bookmarks, including their permissions and properties, from an XML or JSON
+ * document.
+ * <p/>
+ * The XML format is a document of which the root element holds any number of
+ * <tt>bookmark</tt> elements, in the shape that is defined by the JAXB annotations of
+ * {@link Bookmark}:
+ * <pre>
+ * &lt;bookmarks&gt;
+ *   &lt;bookmark&gt;
+ *     &lt;type&gt;group_chat&lt;/type&gt;
+ *     &lt;name&gt;Support&lt;/name&gt;
+ *     &lt;value&gt;support@conference.example.org&lt;/value&gt;
+ *     &lt;globalBookmark&gt;false&lt;/globalBookmark&gt;
+ *     &lt;users&gt;john&lt;/users&gt;
+ *     &lt;groups&gt;Support&lt;/groups&gt;
+ *     &lt;properties&gt;&lt;entry&gt;&lt;key&gt;autojoin&lt;/key&gt;&lt;value&gt;true&lt;/value&gt;&lt;/entry&gt;&lt;/properties&gt;
+ *   &lt;/bookmark&gt;
+ * &lt;/bookmarks&gt;</pre>
+ * The JSON format is an array of objects with the same fields, of which <tt>users</tt> and
+ * <tt>groups</tt> are arrays of names, and <tt>properties</tt> is an object.
+ * <p/>
+ * Documents are read with a pull parser, one bookmark at a time, so that the size of a
+ * document is not limited by the available memory. Any <tt>bookmarkID</tt> in the document
+ * is ignored: the IDs of each batch are reserved as one block, and bookmarks are written in
+ * JDBC batches, each batch in a transaction of its own (of <tt>bookmarks.import.batchsize</tt>
+ * bookmarks). When the document turns out to be malformed, the bookmarks that were read
+ * before the error are still written. The catalog is reloaded once, after all bookmarks have
+ * been written.
+ *
+ * @see BookmarkManager#importBookmarks(InputStream, Format)
+ */
+public class BookmarkImporter {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkImporter.class);
+
+    private static final String INSERT_BOOKMARK =
+            "INSERT INTO ofBookmark(bookmarkID, bookmarkType, bookmarkName, bookmarkValue, " +
+                    "isGlobal) VALUES (?,?,?,?,?)";
+    private static final String INSERT_BOOKMARK_PERMISSION =
+            "INSERT INTO ofBookmarkPerm(bookmarkID, bookmarkType, name) VALUES(?,?,?)";
+    private static final String INSERT_PROPERTY =
+            "INSERT INTO ofBookmarkProp (bookmarkID,name,propValue) VALUES (?,?,?)";
+    private static final String LOAD_SEQUENCE = "SELECT id FROM ofID WHERE idType=?";
+    private static final String CREATE_SEQUENCE = "INSERT INTO ofID (id, idType) VALUES (?,?)";
+    private static final String RESERVE_SEQUENCE = "UPDATE ofID SET id=? WHERE idType=? AND id=?";
+
+    private static final int MAX_RESERVE_ATTEMPTS = 10;
+
+    private static final int BOOKMARK_SEQUENCE = Bookmark.class.getAnnotation(JiveID.class).value();
+
+    /**
+     * The formats of the documents that can be imported and exported.
+     */
+    public enum Format {
+        xml,
+        json
+    }
+
+    private final int batchSize;
+    private final List<Bookmark> batch;
+    private final Result result = new Result();
+
+    BookmarkImporter() {
+        this(JiveGlobals.getIntProperty("bookmarks.import.batchsize", 1000));
+    }
+
+    BookmarkImporter(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        batch = new ArrayList<Bookmark>(this.batchSize);
+    }
+
+    /**
+     * Imports all bookmarks of a document. The catalog is not reloaded by this method.
+     *
+     * @param in     the document.
+     * @param format the format of the document.
+     * @return the result of the import.
+     */
+    Result importBookmarks(InputStream in, Format format) {
+        try {
+            if (format == Format.json) {
+                readJSON(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+            else {
+                readXML(in);
+            }
+        }
+        catch (XMLStreamException e) {
+            result.error("Unable to parse the XML document: " + e.getMessage());
+        }
+        catch (JSONException e) {
+            result.error("Unable to parse the JSON document: " + e.getMessage());
+        }
+        // Also write the bookmarks that were read before a parse error.
+        flush();
+        return result;
+    }
+
+    private void readXML(InputStream in) throws XMLStreamException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        final XMLStreamReader xml = factory.createXMLStreamReader(in);
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "bookmark".equals(xml.getLocalName())) {
+                    add(readXMLBookmark(xml));
+                }
+            }
+        }
+        finally {
+            xml.close();
+        }
+    }
+
+    private static Bookmark readXMLBookmark(XMLStreamReader xml) throws XMLStreamException {
+        final Entry bookmark = new Entry();
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            final String element = xml.getLocalName();
+            if ("type".equals(element)) {
+                bookmark.type = parseType(xml.getElementText());
+            }
+            else if ("name".equals(element)) {
+                bookmark.name = xml.getElementText();
+            }
+            else if ("value".equals(element)) {
+                bookmark.value = xml.getElementText();
+            }
+            else if ("globalBookmark".equals(element)) {
+                bookmark.global = Boolean.parseBoolean(xml.getElementText().trim());
+            }
+            else if ("users".equals(element)) {
+                bookmark.users.add(xml.getElementText());
+            }
+            else if ("groups".equals(element)) {
+                bookmark.groups.add(xml.getElementText());
+            }
+            else if ("properties".equals(element)) {
+                readXMLProperties(xml, bookmark.properties);
+            }
+            else {
+                skipElement(xml);
+            }
+        }
+        return bookmark.build();
+    }
+
+    private static void readXMLProperties(XMLStreamReader xml, Map<String, String> properties) throws XMLStreamException {
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!"entry".equals(xml.getLocalName())) {
+                skipElement(xml);
+                continue;
+            }
+            String key = null;
+            String value = null;
+            while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("key".equals(xml.getLocalName())) {
+                    key = xml.getElementText();
+                }
+                else if ("value".equals(xml.getLocalName())) {
+                    value = xml.getElementText();
+                }
+                else {
+                    skipElement(xml);
+                }
+            }
+            if (key != null && value != null) {
+                properties.put(key, value);
+            }
+        }
+    }
+
+    private static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private void readJSON(Reader reader) throws JSONException {
+        // Only one bookmark object at a time is materialized: the enclosing array is
+        // tokenized here, rather than parsed as a whole.
+        final JSONTokener tokener = new JSONTokener(reader);
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("Expected an array of bookmarks");
+        }
+        if (tokener.nextClean() == ']') {
+            return;
+        }
+        tokener.back();
+        while (true) {
+            final Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected a bookmark object");
+            }
+            add(readJSONBookmark((JSONObject) value));
+
+            final char next = tokener.nextClean();
+            if (next == ']') {
+                return;
+            }
+            if (next != ',') {
+                throw tokener.syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private static Bookmark readJSONBookmark(JSONObject object) {
+        final Entry bookmark = new Entry();
+        bookmark.type = parseType(object.optString("type", null));
+        bookmark.name = object.optString("name", null);
+        bookmark.value = object.optString("value", null);
+        bookmark.global = object.optBoolean("globalBookmark", false);
+        final JSONArray users = object.optJSONArray("users");
+        for (int i = 0; users != null && i < users.length(); i++) {
+            bookmark.users.add(users.getString(i));
+        }
+        final JSONArray groups = object.optJSONArray("groups");
+        for (int i = 0; groups != null && i < groups.length(); i++) {
+            bookmark.groups.add(groups.getString(i));
+        }
+        final JSONObject properties = object.optJSONObject("properties");
+        if (properties != null) {
+            final Iterator<String> keys = properties.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                bookmark.properties.put(key, properties.get(key).toString());
+            }
+        }
+        return bookmark.build();
+    }
+
+    private static Bookmark.Type parseType(String type) {
+        try {
+            return type == null ? null : Bookmark.Type.valueOf(type.trim());
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The fields of a bookmark, while it is being read.
+     */
+    private static class Entry {
+
+        private Bookmark.Type type;
+        private String name;
+        private String value;
+        private boolean global;
+        private final List<String> users = new ArrayList<String>();
+        private final List<String> groups = new ArrayList<String>();
+        private final Map<String, String> properties = new Hashtable<String, String>();
+
+        Bookmark build() {
+            // The ID is allocated when the bookmark is written.
+            return new Bookmark(0, type, name, value, global, users, groups, properties);
+        }
+    }
+
+    private void add(Bookmark bookmark) {
+        if (bookmark.getType() == null || bookmark.getName() == null || bookmark.getValue() == null) {
+            result.skipped++;
+            if (result.skipped == 1) {
+                Log.warn("Skipping bookmarks without a valid type, name or value.");
+            }
+            return;
+        }
+        batch.add(bookmark);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the pending batch of bookmarks, and counts them as imported or failed.
+     */
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+            result.imported += batch.size();
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+            result.failed += batch.size();
+            result.error("Unable to write " + batch.size() + " bookmark(s): " + e.getMessage());
+        }
+        batch.clear();
+    }
+
+    /**
+     * Writes a batch of bookmarks in one transaction.
+     *
+     * @param pending the bookmarks to write.
+     * @throws SQLException if the bookmarks could not be written, in which case none of them is.
+     */
+    void write(List<Bookmark> pending) throws SQLException {
+        Connection con = null;
+        PreparedStatement bookmarks = null;
+        PreparedStatement permissions = null;
+        PreparedStatement properties = null;
+        boolean abortTransaction = false;
+        try {
+            long bookmarkID = reserveIDs(pending.size());
+            con = DbConnectionManager.getTransactionConnection();
+            bookmarks = con.prepareStatement(INSERT_BOOKMARK);
+            permissions = con.prepareStatement(INSERT_BOOKMARK_PERMISSION);
+            properties = con.prepareStatement(INSERT_PROPERTY);
+            for (Bookmark bookmark : pending) {
+                bookmarks.setLong(1, bookmarkID);
+                bookmarks.setString(2, bookmark.getType().toString());
+                bookmarks.setString(3, bookmark.getName());
+                bookmarks.setString(4, bookmark.getValue());
+                bookmarks.setInt(5, bookmark.isGlobalBookmark() ? 1 : 0);
+                bookmarks.addBatch();
+
+                for (String name : Bookmark.difference(bookmark.getUsers(), null)) {
+                    addPermission(permissions, bookmarkID, Bookmark.USERS, name);
+                }
+                for (String name : Bookmark.difference(bookmark.getGroups(), null)) {
+                    addPermission(permissions, bookmarkID, Bookmark.GROUPS, name);
+                }
+                for (Map.Entry<String, String> property : bookmark.getPropertyMap().entrySet()) {
+                    properties.setLong(1, bookmarkID);
+                    properties.setString(2, property.getKey());
+                    properties.setString(3, property.getValue());
+                    properties.addBatch();
+                }
+                bookmarkID++;
+            }
+            bookmarks.executeBatch();
+            permissions.executeBatch();
+            properties.executeBatch();
+        }
+        catch (SQLException e) {
+            abortTransaction = true;
+            throw e;
+        }
+        finally {
+            DbConnectionManager.closeStatement(bookmarks);
+            DbConnectionManager.closeStatement(permissions);
+            DbConnectionManager.closeTransactionConnection(properties, con, abortTransaction);
+        }
+    }
+
+    /**
+     * Reserves a block of consecutive bookmark IDs, by advancing the ID sequence of the
+     * bookmarks in the <tt>ofID</tt> table. The update is conditional on the value that was
+     * read, as the updates of {@link org.jivesoftware.database.SequenceManager} are, so that
+     * concurrent imports, migrations and bookmarks that are created in the meantime never
+     * receive the same IDs. The block size of the shared sequence manager is left alone.
+     *
+     * @param count the number of IDs to reserve.
+     * @return the first ID of the block.
+     * @throws SQLException if the IDs could not be reserved.
+     */
+    private static long reserveIDs(int count) throws SQLException {
+        for (int attempt = 0; attempt < MAX_RESERVE_ATTEMPTS; attempt++) {
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(LOAD_SEQUENCE);
+                pstmt.setInt(1, BOOKMARK_SEQUENCE);
+                rs = pstmt.executeQuery();
+                final boolean exists = rs.next();
+                final long firstID = exists ? rs.getLong(1) : 1;
+                DbConnectionManager.fastcloseStmt(rs, pstmt);
+                rs = null;
+
+                if (exists) {
+                    pstmt = con.prepareStatement(RESERVE_SEQUENCE);
+                    pstmt.setLong(1, firstID + count);
+                    pstmt.setInt(2, BOOKMARK_SEQUENCE);
+                    pstmt.setLong(3, firstID);
+                }
+                else {
+                    pstmt = con.prepareStatement(CREATE_SEQUENCE);
+                    pstmt.setLong(1, firstID + count);
+                    pstmt.setInt(2, BOOKMARK_SEQUENCE);
+                }
+                if (pstmt.executeUpdate() == 1) {
+                    return firstID;
+                }
+            }
+            catch (SQLException e) {
+                // The sequence may have been created concurrently; try again.
+                if (attempt == MAX_RESERVE_ATTEMPTS - 1) {
+                    throw e;
+                }
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+        }
+        throw new SQLException("Unable to reserve " + count + " bookmark ID(s): the ID sequence is being updated concurrently.");
+    }
+
+    private static void addPermission(PreparedStatement pstmt, long bookmarkID, int type, String name) throws SQLException {
+        pstmt.setLong(1, bookmarkID);
+        pstmt.setInt(2, type);
+        pstmt.setString(3, name);
+        pstmt.addBatch();
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static class Result {
+
+        private int imported;
+        private int skipped;
+        private int failed;
+        private final List<String> errors = new ArrayList<String>();
+
+        private void error(String message) {
+            Log.warn(message);
+            errors.add(message);
+        }
+
+        /**
+         * Returns the number of bookmarks that have been imported.
+         *
+         * @return the number of imported bookmarks.
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        /**
+         * Returns the number of bookmarks that were skipped, as they lack a valid type, name or value.
+         *
+         * @return the number of skipped bookmarks.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the number of bookmarks that could not be written to the database.
+         *
+         * @return the number of failed bookmarks.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the errors that occurred while parsing the document or writing bookmarks.
+         *
+         * @return the error messages.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return "imported " + imported + " bookmark(s), skipped " + skipped + ", failed " + failed;
+        }
+    }
+}
@@ -17,13 +17,12 @@
 package org.jivesoftware.openfire.plugin.spark;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 
 import org.dom4j.Element;
-import org.jivesoftware.openfire.*;
-import org.jivesoftware.openfire.group.Group;
-import org.jivesoftware.openfire.group.GroupManager;
-import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
@@ -36,7 +35,6 @@ import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
-import org.jivesoftware.util.NotFoundException;
 
 /**
  * Intercepts Bookmark Storage requests and appends all server based Bookmarks to
@@ -48,6 +46,18 @@ public class BookmarkInterceptor implements PacketInterceptor {
 
     private static final Logger Log = LoggerFactory.getLogger(BookmarkInterceptor.class);
 
+    /**
+     * Signals that a stanza has been handled by this plugin, and must not be processed any
+     * further. vCard requests for conference rooms are routed to the multi-user chat service
+     * rather than to the IQ handlers of the server, so an IQ handler would never see them; an
+     * interceptor can only stop their processing by rejecting them. As this is used for
+     * control flow rather than to report a problem, a single instance is shared, so that no
+     * exception has to be created for each stanza.
+     */
+    private static final PacketRejectedException HANDLED = new HandledException();
+
+    private final BookmarkVCardHandler vCardHandler = new BookmarkVCardHandler();
+
     /**
      * Initializes the BookmarkInterceptor and needed Server instances.
      */
@@ -84,52 +94,8 @@ public class BookmarkInterceptor implements PacketInterceptor {
             else
 
             if ("vcard-temp".equals(namespace)) {
-                String key = null;
-
-                if (iq.getType() == IQ.Type.get && incoming && iq.getTo() != null)
-                {
-                    key = iq.getTo().toString();
-                }
-                else
-
-                if (iq.getType() == IQ.Type.error && !incoming && iq.getFrom() != null)
-                {
-                    key = iq.getFrom().toString();
-                }
-
-                if (key != null)
-                {
-                    try {
-                        Bookmark bookmark = BookmarkManager.getBookmark(key);
-                        String avatarUri = bookmark.getProperty("avatar_uri");
-
-                        if (avatarUri != null)
-                        {
-                            if (iq.getType() == IQ.Type.get)
-                            {
-                                String[] avatar = avatarUri.split(";base64,");
-                                String mime = avatar[0].substring(5);
-                                String bin = avatar[1];
-
-                                IQ reply = IQ.createResultIQ(iq);
-                                Element child = reply.setChildElement("vCard", "vcard-temp");
-                                child.addElement("FN").setText(bookmark.getName());
-                                child.addElement("NICKNAME").setText(bookmark.getName());
-
-                                Element photo = child.addElement("PHOTO");
-                                photo.addElement("TYPE").setText(mime);
-                                photo.addElement("BINVAL").setText(bin);
-
-                                Log.debug("interceptPacket reply \n" + reply);
-                                XMPPServer.getInstance().getIQRouter().route(reply);
-                            }
-
-                            throw new PacketRejectedException("handled by bookmarks plugin");
-                        }
-                    }
-                    catch (NotFoundException e) {
-                        // do nothing
-                    }
+                if (vCardHandler.process(iq, incoming)) {
+                    throw HANDLED;
                 }
             }
         }
@@ -158,104 +124,59 @@ public class BookmarkInterceptor implements PacketInterceptor {
      */
     private void addBookmarks(JID jid, Element storageElement) {
         try {
-            final Collection<Bookmark> bookmarks = BookmarkManager.getBookmarks();
-
-            for (Bookmark bookmark : bookmarks) {
-                // Check to see if the bookmark should be appended for this
-                // particular user.
-                boolean addBookmarkForUser = bookmark.isGlobalBookmark() || isBookmarkForJID(jid, bookmark);
-                if (addBookmarkForUser) {
-                    // Add bookmark element.
-                    addBookmarkElement(jid, bookmark, storageElement);
-                }
+            final User user;
+            try {
+                user = UserManager.getInstance().getUser(jid.getNode());
+            }
+            catch (UserNotFoundException e) {
+                return;
             }
-        } catch (Exception e) {
-            Log.error("addBookmarks", e);
-        }
-    }
-
-    /**
-     * True if the specified bookmark should be appended to the users list of
-     * bookmarks.
-     *
-     * @param jid      the jid of the user.
-     * @param bookmark the bookmark.
-     * @return true if bookmark should be appended.
-     */
-    private static boolean isBookmarkForJID(JID jid, Bookmark bookmark) {
-        String username = jid.getNode();
 
-        if (bookmark.getUsers().contains(username)) {
-            return true;
-        }
+            final BookmarkCatalog catalog;
+            final Collection<Bookmark> bookmarks;
+            if (BookmarkManager.isCatalogEnabled()) {
+                catalog = BookmarkManager.getCatalog();
+                bookmarks = BookmarkManager.getBookmarksForUser(jid.getNode());
+            }
+            else {
+                catalog = null;
+                bookmarks = BookmarkManager.loadBookmarksForUser(jid.getNode());
+            }
 
-        Collection<String> groups = bookmark.getGroups();
+            // Index the bookmarks that the user already has, to avoid adding duplicates.
+            final Map<String, Element> urlElements = indexElements(storageElement, "url", "url");
+            final Map<String, Element> conferenceElements = indexElements(storageElement, "conference", "jid");
 
-        if (groups != null && !groups.isEmpty()) {
-            GroupManager groupManager = GroupManager.getInstance();
-            for (String groupName : groups) {
-                try {
-                    Group group = groupManager.getGroup(groupName);
-                    if (group.isUser(jid.getNode())) {
-                        return true;
-                    }
-                }
-                catch (GroupNotFoundException e) {
-                    Log.debug(e.getMessage(), e);
-                }
+            for (Bookmark bookmark : bookmarks) {
+                // Add bookmark element.
+                addBookmarkElement(user, catalog, bookmark, storageElement, urlElements, conferenceElements);
             }
+        } catch (Exception e) {
+            Log.error("addBookmarks", e);
         }
-        return false;
     }
 
     /**
      * Adds a Bookmark to the users defined list of bookmarks.
      *
-     * @param jid      the users jid.
-     * @param bookmark the bookmark to be added.
-     * @param element  the storage element to append to.
+     * @param user               the user.
+     * @param catalog            the catalog that holds the decoded properties of the bookmark (can be null).
+     * @param bookmark           the bookmark to be added.
+     * @param element            the storage element to append to.
+     * @param urlElements        the url elements in the storage element, by lower-case URL.
+     * @param conferenceElements the conference elements in the storage element, by lower-case room JID.
      */
-    private void addBookmarkElement(JID jid, Bookmark bookmark, Element element) {
-        final UserManager userManager = UserManager.getInstance();
-
-        try {
-            userManager.getUser(jid.getNode());
-        }
-        catch (UserNotFoundException e) {
-            return;
-        }
-
+    private void addBookmarkElement(User user, BookmarkCatalog catalog, Bookmark bookmark, Element element,
+                                    Map<String, Element> urlElements, Map<String, Element> conferenceElements) {
         // If this is a URL Bookmark, check to make sure we
         // do not add duplicate bookmarks.
         if (bookmark.getType() == Bookmark.Type.url) {
-            Element urlBookmarkElement = urlExists(element, bookmark.getValue());
+            Element urlBookmarkElement = findElement(urlElements, bookmark.getValue());
 
             if (urlBookmarkElement == null) {
-                urlBookmarkElement = element.addElement("url");
-                urlBookmarkElement.addAttribute("name", bookmark.getName());
-                urlBookmarkElement.addAttribute("url", bookmark.getValue());
-                // Add an RSS attribute to the bookmark if it's defined. RSS isn't an
-                // official part of the Bookmark JEP, but we define it as a logical
-                // extension.
-                boolean rss = Boolean.valueOf(bookmark.getProperty("rss"));
-                if (rss) {
-                    urlBookmarkElement.addAttribute("rss", Boolean.toString(rss));
-                }
-
-                boolean webapp = Boolean.valueOf(bookmark.getProperty("webapp"));
-                if (webapp) {
-                    urlBookmarkElement.addAttribute("webapp", Boolean.toString(webapp));
-                }
-
-                boolean collabapp = Boolean.valueOf(bookmark.getProperty("collabapp"));
-                if (collabapp) {
-                    urlBookmarkElement.addAttribute("collabapp", Boolean.toString(collabapp));
-                }
-
-                boolean homepage = Boolean.valueOf(bookmark.getProperty("homepage"));
-                if (homepage) {
-                    urlBookmarkElement.addAttribute("homepage", Boolean.toString(homepage));
-                }
+                urlBookmarkElement = createBookmarkElement(catalog, bookmark);
+                element.add(urlBookmarkElement);
+                indexElement(urlElements, bookmark.getValue(), urlBookmarkElement);
             }
             appendSharedElement(urlBookmarkElement);
         }
@@ -263,46 +184,26 @@ public class BookmarkInterceptor implements PacketInterceptor {
         else {
 
             try {
-                Element conferenceElement = conferenceExists(element, bookmark.getValue());
+                Element conferenceElement = findElement(conferenceElements, bookmark.getValue());
 
                 // If the conference bookmark does not exist, add it to the current
                 // reply.
                 if (conferenceElement == null) {
-                    conferenceElement = element.addElement("conference");
-                    conferenceElement.addAttribute("name", bookmark.getName());
-                    boolean autojoin = Boolean.valueOf(bookmark.getProperty("autojoin"));
-                    conferenceElement.addAttribute("autojoin", Boolean.toString(autojoin));
-                    conferenceElement.addAttribute("jid", bookmark.getValue());
-                    boolean nameasnick = Boolean.valueOf(bookmark.getProperty("nameasnick"));
-                    if (nameasnick) {
-                        User currentUser = userManager.getUser(jid.getNode());
+                    conferenceElement = createBookmarkElement(catalog, bookmark);
+                    element.add(conferenceElement);
+                    indexElement(conferenceElements, bookmark.getValue(), conferenceElement);
+                    if (BookmarkFlag.nameasnick.isSet(getFlags(catalog, bookmark))) {
                         Element nick = conferenceElement.addElement("nick");
-                        nick.addText(currentUser.getName());
+                        nick.addText(user.getName());
+                    }
+                    final BookmarkAvatar avatar = getAvatar(catalog, bookmark);
+                    if (BookmarkAvatarServlet.isServed(bookmark, avatar)) {
+                        // Refer to the avatar instead of including it in every bookmark.
+                        conferenceElement.addAttribute("avatar_uri", BookmarkAvatarServlet.getURL(bookmark.getBookmarkID(), avatar));
                     }
-                    if (bookmark.getProperty("avatar_uri") != null) {
+                    else if (bookmark.getProperty("avatar_uri") != null) {
                        conferenceElement.addAttribute("avatar_uri", bookmark.getProperty("avatar_uri"));
                     }
-
-                    boolean ofmeet_recording = Boolean.valueOf(bookmark.getProperty("ofmeet_recording"));
-                    if (ofmeet_recording) conferenceElement.addAttribute("ofmeet_recording", Boolean.toString(ofmeet_recording));
-
-                    boolean ofmeet_tags = Boolean.valueOf(bookmark.getProperty("ofmeet_tags"));
-                    if (ofmeet_tags) conferenceElement.addAttribute("ofmeet_tags", Boolean.toString(ofmeet_tags));
-
-                    boolean ofmeet_cryptpad = Boolean.valueOf(bookmark.getProperty("ofmeet_cryptpad"));
-                    if (ofmeet_cryptpad) conferenceElement.addAttribute("ofmeet_cryptpad", Boolean.toString(ofmeet_cryptpad));
-
-                    boolean ofmeet_captions = Boolean.valueOf(bookmark.getProperty("ofmeet_captions"));
-                    if (ofmeet_captions) conferenceElement.addAttribute("ofmeet_captions", Boolean.toString(ofmeet_captions));
-
-                    boolean ofmeet_transcription = Boolean.valueOf(bookmark.getProperty("ofmeet_transcription"));
-                    if (ofmeet_transcription) conferenceElement.addAttribute("ofmeet_transcription", Boolean.toString(ofmeet_transcription));
-
-                    boolean ofmeet_uploads = Boolean.valueOf(bookmark.getProperty("ofmeet_uploads"));
-                    if (ofmeet_uploads) conferenceElement.addAttribute("ofmeet_uploads", Boolean.toString(ofmeet_uploads));
-
-                    boolean ofmeet_breakout = Boolean.valueOf(bookmark.getProperty("ofmeet_breakout"));
-                    if (ofmeet_breakout) conferenceElement.addAttribute("ofmeet_breakout", Boolean.toString(ofmeet_breakout));
                 }
                 appendSharedElement(conferenceElement);
 
@@ -313,6 +214,38 @@ public class BookmarkInterceptor implements PacketInterceptor {
         }
     }
 
+    /**
+     * Creates the url or conference element of a bookmark. For global bookmarks, this is a
+     * copy of the element that was pre-rendered by the catalog.
+     *
+     * @param catalog  the catalog that holds the bookmark (can be null).
+     * @param bookmark the bookmark.
+     * @return a new, detached element.
+     */
+    private static Element createBookmarkElement(BookmarkCatalog catalog, Bookmark bookmark) {
+        final BookmarkFragment fragment = catalog == null ? null : catalog.getFragment(bookmark.getBookmarkID());
+        if (fragment != null) {
+            return fragment.createElement();
+        }
+        return BookmarkFragment.render(bookmark, getFlags(catalog, bookmark), getAvatar(catalog, bookmark));
+    }
+
+    /**
+     * Returns the decoded flags of a bookmark. These are taken from the catalog when the
+     * bookmark was resolved from it, and decoded from the bookmark itself otherwise.
+     */
+    private static int getFlags(BookmarkCatalog catalog, Bookmark bookmark) {
+        return catalog == null ? BookmarkFlag.decode(bookmark) : catalog.getFlags(bookmark.getBookmarkID());
+    }
+
+    /**
+     * Returns the avatar of a bookmark. This is taken from the catalog when the bookmark was
+     * resolved from it, and parsed from the bookmark itself otherwise.
+     */
+    private static BookmarkAvatar getAvatar(BookmarkCatalog catalog, Bookmark bookmark) {
+        return catalog == null ? BookmarkAvatar.parse(bookmark) : catalog.getAvatar(bookmark.getBookmarkID());
+    }
+
     /**
      * Adds the shared namespace element to indicate to clients that this bookmark is a shared bookmark.
      *
@@ -323,46 +256,72 @@ public class BookmarkInterceptor implements PacketInterceptor {
     }
 
     /**
-     * Checks if the bookmark has already been defined in the users private storage.
+     * Indexes the bookmarks that have already been defined in the users private storage.
      *
-     * @param element the private storage element.
-     * @param url     the url to search for.
-     * @return true if the bookmark already exists.
+     * @param element   the private storage element.
+     * @param name      the name of the bookmark elements to index.
+     * @param attribute the attribute that holds the value of the bookmark.
+     * @return the bookmark elements, by the lower-case value of their attribute.
      */
-    private static Element urlExists(Element element, String url) {
-        // Iterate through current elements to see if this url already exists.
-        // If one does not exist, then add the bookmark.
-        final Iterator<Element> urlBookmarks = element.elementIterator("url");
-        while (urlBookmarks.hasNext()) {
-            Element urlElement = urlBookmarks.next();
-            String urlValue = urlElement.attributeValue("url");
-            if (urlValue.equalsIgnoreCase(url)) {
-                return urlElement;
-            }
+    private static Map<String, Element> indexElements(Element element, String name, String attribute) {
+        final Map<String, Element> index = new HashMap<String, Element>();
+        final Iterator<Element> bookmarkElements = element.elementIterator(name);
+        while (bookmarkElements.hasNext()) {
+            final Element bookmarkElement = bookmarkElements.next();
+            indexElement(index, bookmarkElement.attributeValue(attribute), bookmarkElement);
         }
+        return index;
+    }
 
-        return null;
+    private static void indexElement(Map<String, Element> index, String value, Element bookmarkElement) {
+        if (value != null && !index.containsKey(value.toLowerCase(Locale.ROOT))) {
+            index.put(value.toLowerCase(Locale.ROOT), bookmarkElement);
+        }
     }
 
     /**
-     * Checks if the conference bookmark has already been defined in the users private storage.
+     * Checks if the bookmark has already been defined in the users private storage.
      *
-     * @param element  the private storage element.
-     * @param roomJID the JID of the room to find.
-     * @return true if the bookmark exists.
+     * @param index the indexed bookmark elements of the private storage element.
+     * @param value the URL or room JID to search for.
+     * @return the existing bookmark element, or null if the bookmark does not exist.
      */
-    private Element conferenceExists(Element element, String roomJID) {
-        // Iterate through current elements to see if the conference bookmark
-        // already exists.
-        final Iterator<Element> conferences = element.elementIterator("conference");
-        while (conferences.hasNext()) {
-            final Element conferenceElement = conferences.next();
-            String jidValue = conferenceElement.attributeValue("jid");
-
-            if (jidValue != null && roomJID != null && jidValue.equalsIgnoreCase(roomJID)) {
-                return conferenceElement;
-            }
+    private static Element findElement(Map<String, Element> index, String value) {
+        return value == null ? null : index.get(value.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The exception of {@link #HANDLED}. As one instance is shared by all threads, it cannot
+     * be changed: it has no stack trace, no cause and no rejection message. PacketRejectedException
+     * does not offer the constructor of Throwable that disables the stack trace, so the methods
+     * that would record one are overridden instead.
+     */
+    private static final class HandledException extends PacketRejectedException {
+
+        private static final long serialVersionUID = 1L;
+
+        HandledException() {
+            super("handled by bookmarks plugin");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+        @Override
+        public void setStackTrace(StackTraceElement[] stackTrace) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized Throwable initCause(Throwable cause) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setRejectionMessage(String rejectionMessage) {
+            throw new UnsupportedOperationException();
         }
-        return null;
     }
 }
@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads all bookmarks, including their permissions and properties. Bookmarks, permissions
+ * and properties are each read with a single query and merged by bookmark ID, so the number
+ * of database round trips does not depend on the number of bookmarks.
+ *
+ * @see BookmarkManager#loadBookmarks()
+ */
+final class BookmarkLoader {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkLoader.class);
+
+    private static final String LOAD_BOOKMARKS =
+            "SELECT bookmarkID, bookmarkType, bookmarkName, bookmarkValue, isGlobal FROM ofBookmark " +
+                    "ORDER BY bookmarkID";
+    private static final String LOAD_ALL_PERMISSIONS =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm";
+    private static final String LOAD_ALL_PROPERTIES =
+            "SELECT bookmarkID, name, propValue FROM ofBookmarkProp";
+
+    private BookmarkLoader() {
+    }
+
+    /**
+     * Loads all bookmarks on a connection. Permissions and properties of bookmarks that don't
+     * exist are ignored, as are bookmarks of an unknown type.
+     *
+     * @param con the connection, which is not closed.
+     * @return the fully populated bookmarks, ordered by bookmark ID.
+     * @throws SQLException if the bookmarks could not be read.
+     */
+    static Collection<Bookmark> load(Connection con) throws SQLException {
+        final Map<Long, Bookmark> bookmarks = new LinkedHashMap<Long, Bookmark>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement(LOAD_BOOKMARKS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long bookmarkID = rs.getLong(1);
+                try {
+                    Bookmark bookmark = new Bookmark(bookmarkID, Bookmark.Type.valueOf(rs.getString(2)),
+                            rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                            new ArrayList<String>(), new ArrayList<String>(), new Hashtable<String, String>());
+                    bookmarks.put(bookmarkID, bookmark);
+                }
+                catch (IllegalArgumentException e) {
+                    Log.error("Unable to load bookmark " + bookmarkID, e);
+                }
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+            rs = null;
+
+            pstmt = con.prepareStatement(LOAD_ALL_PERMISSIONS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Bookmark bookmark = bookmarks.get(rs.getLong(1));
+                if (bookmark == null) {
+                    continue;
+                }
+                if (rs.getInt(2) == Bookmark.USERS) {
+                    bookmark.getUsers().add(rs.getString(3));
+                }
+                else {
+                    bookmark.getGroups().add(rs.getString(3));
+                }
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+            rs = null;
+
+            pstmt = con.prepareStatement(LOAD_ALL_PROPERTIES);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Bookmark bookmark = bookmarks.get(rs.getLong(1));
+                if (bookmark != null) {
+                    bookmark.getPropertyMap().put(rs.getString(2), rs.getString(3));
+                }
+            }
+        }
+        finally {
+            DbConnectionManager.closeStatement(rs, pstmt);
+        }
+        return new ArrayList<Bookmark>(bookmarks.values());
+    }
+}
@@ -16,19 +16,34 @@
 
 package org.jivesoftware.openfire.plugin.spark;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.Element;
 import org.xmpp.packet.*;
 
 import org.jivesoftware.openfire.*;
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +52,8 @@ import org.jivesoftware.openfire.group.*;
 import org.jivesoftware.openfire.user.*;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
 
 /**
  * Manages global bookmarks. Bookmarks are defined by
@@ -52,27 +69,72 @@ public class BookmarkManager {
     private static final Logger Log = LoggerFactory.getLogger(BookmarkManager.class);
 
     private static final String DELETE_BOOKMARK = "DELETE FROM ofBookmark where bookmarkID=?";
-    private static final String SELECT_BOOKMARKS = "SELECT bookmarkID from ofBookmark";
+    private static final String DELETE_BOOKMARK_PERMISSIONS = "DELETE FROM ofBookmarkPerm WHERE bookmarkID=?";
+    private static final String DELETE_BOOKMARK_PROPERTIES = "DELETE FROM ofBookmarkProp WHERE bookmarkID=?";
+    private static final String RENAME_GROUP_PERMISSIONS =
+            "UPDATE ofBookmarkPerm SET name=? WHERE bookmarkType=? AND name=?";
+    private static final String DELETE_GROUP_PERMISSIONS =
+            "DELETE FROM ofBookmarkPerm WHERE bookmarkType=? AND name=?";
+    private static final String LOAD_BOOKMARKS_WHERE =
+            "SELECT bookmarkID, bookmarkType, bookmarkName, bookmarkValue, isGlobal FROM ofBookmark WHERE ";
+    private static final String GLOBAL_OR_USER_BOOKMARKS =
+            "isGlobal=1 OR bookmarkID IN (SELECT bookmarkID FROM ofBookmarkPerm WHERE bookmarkType=? AND name=?)";
+    private static final String GROUP_BOOKMARKS =
+            "bookmarkID IN (SELECT bookmarkID FROM ofBookmarkPerm WHERE bookmarkType=? AND name IN ";
+    private static final String LOAD_PERMISSIONS_IN =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm WHERE bookmarkID IN ";
+    private static final String LOAD_PROPERTIES_IN =
+            "SELECT bookmarkID, name, propValue FROM ofBookmarkProp WHERE bookmarkID IN ";
+    private static final String COUNT_BOOKMARKS =
+            "SELECT bookmarkType, isGlobal, COUNT(*) FROM ofBookmark GROUP BY bookmarkType, isGlobal";
+    private static final String COUNT_PERMISSIONS_IN =
+            "SELECT bookmarkID, bookmarkType, COUNT(*) FROM ofBookmarkPerm WHERE bookmarkID IN ";
+    private static final String LOAD_PERMISSION_NAMES_IN =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm WHERE bookmarkID IN ";
+    private static final String FIND_USER_PERMISSION =
+            "SELECT bookmarkID FROM ofBookmarkPerm WHERE bookmarkID=? AND bookmarkType=? AND name=?";
+    private static final String FIND_GROUP_PERMISSION =
+            "SELECT bookmarkID FROM ofBookmarkPerm WHERE bookmarkID=? AND bookmarkType=? AND name IN ";
 
     private static final String DOMAIN = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
     private static final MessageRouter MESSAGE_ROUTER = XMPPServer.getInstance().getMessageRouter();
     private static final UserManager USER_MANAGER = XMPPServer.getInstance().getUserManager().getInstance();
     private static final PresenceManager PRESENCE_MANAGER = XMPPServer.getInstance().getPresenceManager();
 
+    private static final Object CATALOG_LOCK = new Object();
+    private static volatile BookmarkCatalog catalog;
+
+    // Incremented when a change affects the bookmarks of all users, such as adding a global
+    // bookmark. Changes to the users and groups of a bookmark only evict the affected users.
+    private static final AtomicLong targetingVersion = new AtomicLong();
+    private static final AtomicLong groupMembershipVersion = new AtomicLong();
+    // Incremented before the bookmarks of individual users are evicted outside of the catalog
+    // lock, so that a result that was resolved concurrently is not cached after the eviction.
+    private static final AtomicLong evictionVersion = new AtomicLong();
+    private static final Cache<String, UserBookmarks> userBookmarksCache = createUserBookmarksCache();
+
     /**
-     * Returns the specified bookmark.
+     * Returns the specified bookmark. When the catalog has been disabled, the bookmark is
+     * read from the database.
      *
      * @param bookmarkID the ID of the bookmark.
      * @return the bookmark.
      * @throws NotFoundException if the bookmark could not be found or loaded.
      */
     public static Bookmark getBookmark(long bookmarkID) throws NotFoundException {
-        // TODO add caching
-        return new Bookmark(bookmarkID);
+        if (!isCatalogEnabled()) {
+            return new Bookmark(bookmarkID);
+        }
+        final Bookmark bookmark = getCatalog().getBookmark(bookmarkID);
+        if (bookmark == null) {
+            throw new NotFoundException("Bookmark not found: " + bookmarkID);
+        }
+        return bookmark.copy();
     }
 
     /**
-     * Returns the specified bookmark.
+     * Returns the specified bookmark. When the catalog has been disabled, the bookmark is
+     * read from the database.
      *
      * @param bookmarkValue the value of the bookmark.
      * @return the bookmark.
@@ -80,20 +142,49 @@ public class BookmarkManager {
      */
     public static Bookmark getBookmark(String bookmarkValue) throws NotFoundException
     {
-        Cache<String, Long> bookmarkCache = CacheFactory.createLocalCache("Bookmarks By Value");
-        Bookmark bookmark = null;
-
-        try {
-            bookmark =  getBookmark(bookmarkCache.get(bookmarkValue));
-
-        } catch (Exception e) {
-            bookmark = new Bookmark(bookmarkValue);
-            bookmarkCache.put(bookmarkValue, bookmark.getBookmarkID());
+        if (!isCatalogEnabled()) {
+            return new Bookmark(bookmarkValue);
+        }
+        final Bookmark bookmark = findBookmark(bookmarkValue);
+        if (bookmark == null) {
+            throw new NotFoundException("Bookmark not found: " + bookmarkValue);
+        }
+        return bookmark.copy();
+    }
 
-            Log.debug("getBookmark: adding to cache "  + bookmarkValue);
+    /**
+     * Returns the bookmark that has the specified value, without database access. Unlike
+     * {@link #getBookmark(String)}, an unknown value is not treated as an exceptional
+     * condition, which makes this method suitable for checking every address that passes
+     * through the server. This must only be used while the catalog is enabled.
+     *
+     * @param bookmarkValue the value of the bookmark.
+     * @return the read-only catalog entry of the bookmark, or null if there is none.
+     */
+    static Bookmark findBookmark(String bookmarkValue)
+    {
+        return getCatalog().getBookmarkByValue(bookmarkValue);
+    }
 
+    /**
+     * Returns the parsed avatar of the group chat bookmark that has the specified value.
+     * This never accesses the database, as it is used to check every vCard request that
+     * passes through the server; while the in-memory catalog has been disabled, no avatar
+     * is found.
+     *
+     * @param bookmarkValue the value of the bookmark; the address of a conference room.
+     * @return the avatar, or null when there is no such bookmark, when it has no avatar, or
+     *         when the catalog has been disabled.
+     * @see #isCatalogEnabled()
+     */
+    static BookmarkAvatar findAvatar(String bookmarkValue)
+    {
+        if (!isCatalogEnabled()) {
+            return null;
         }
-        return bookmark;
+        final BookmarkCatalog current = getCatalog();
+        final Bookmark bookmark = current.getBookmarkByValue(bookmarkValue);
+        return bookmark == null ? null : current.getAvatar(bookmark.getBookmarkID());
     }
 
     /**
@@ -108,28 +199,353 @@ public class BookmarkManager {
     {
         if (username == null || username.equals("null") || username.equals("")) return false;
 
-        if (bookmark.isGlobalBookmark())            return true;
-        if (bookmark.getUsers().contains(username)) return true;
+        if (bookmark.isGlobalBookmark()) return true;
 
-        Collection<String> groups = bookmark.getGroups();
+        if (!isCatalogEnabled()) {
+            return hasPermission(bookmark.getBookmarkID(), username);
+        }
 
-        if (groups != null && !groups.isEmpty())
-        {
-            GroupManager groupManager = GroupManager.getInstance();
+        return getBookmarkIDsForUser(getCatalog(), username).contains(bookmark.getBookmarkID());
+    }
 
-            for (String groupName : groups) {
-                try {
-                    Group group = groupManager.getGroup(groupName);
+    /**
+     * Checks in the database if a bookmark has been assigned to a user, either directly or
+     * through any of the groups that the user belongs to.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @param username   the name of the user.
+     * @return true if the bookmark has been assigned to the user.
+     */
+    private static boolean hasPermission(long bookmarkID, String username)
+    {
+        final List<String> groupNames = new ArrayList<String>();
+        for (Group group : GroupManager.getInstance().getGroups(XMPPServer.getInstance().createJID(username, null))) {
+            groupNames.add(group.getName());
+        }
+        final int chunkSize = Math.max(1, JiveGlobals.getIntProperty("bookmarks.query.groups.chunksize", 100));
 
-                    if (group.isUser(username)) {
-                        return true;
-                    }
-                } catch (GroupNotFoundException e) { }
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(FIND_USER_PERMISSION);
+            pstmt.setLong(1, bookmarkID);
+            pstmt.setInt(2, Bookmark.USERS);
+            pstmt.setString(3, username);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return true;
             }
+            DbConnectionManager.closeStatement(rs, pstmt);
+
+            for (int offset = 0; offset < groupNames.size(); offset += chunkSize) {
+                final List<String> chunk = groupNames.subList(offset, Math.min(offset + chunkSize, groupNames.size()));
+                pstmt = con.prepareStatement(appendPlaceholders(new StringBuilder(FIND_GROUP_PERMISSION), chunk.size()).toString());
+                int index = 1;
+                pstmt.setLong(index++, bookmarkID);
+                pstmt.setInt(index++, Bookmark.GROUPS);
+                for (String groupName : chunk) {
+                    pstmt.setString(index++, groupName);
+                }
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return true;
+                }
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
         }
         return false;
     }
 
+    /**
+     * Returns all bookmarks that apply to a user: the global bookmarks, the bookmarks that
+     * have been assigned to the user directly, and the bookmarks that have been assigned to
+     * any of the groups that the user belongs to.
+     *
+     * @param username the name of the user.
+     * @return the read-only catalog entries of the bookmarks, ordered by bookmark ID.
+     */
+    static List<Bookmark> getBookmarksForUser(String username)
+    {
+        final BookmarkCatalog current = getCatalog();
+        final long version = targetingVersion.get();
+        final long groupVersion = groupMembershipVersion.get();
+        final long evictions = evictionVersion.get();
+
+        UserBookmarks entry = username == null ? null : userBookmarksCache.get(username);
+        if (entry == null || !entry.isValid(version, groupVersion)) {
+            entry = new UserBookmarks(version, groupVersion, getBookmarkIDsForUser(current, username));
+            if (username != null) {
+                synchronized (CATALOG_LOCK) {
+                    // Don't cache a result that was resolved against a catalog that has been
+                    // replaced in the meantime, or while users were evicted, as the evictions
+                    // may already have taken place.
+                    if (catalog == current && evictionVersion.get() == evictions) {
+                        userBookmarksCache.put(username, entry);
+                    }
+                }
+            }
+        }
+
+        final List<Bookmark> bookmarks = new ArrayList<Bookmark>(entry.bookmarkIDs.size());
+        for (Long bookmarkID : entry.bookmarkIDs) {
+            final Bookmark bookmark = current.getBookmark(bookmarkID);
+            if (bookmark != null) {
+                bookmarks.add(bookmark);
+            }
+        }
+        return bookmarks;
+    }
+
+    /**
+     * Signals that the membership of one or more groups has changed. This invalidates the
+     * bookmarks that were resolved for all users.
+     */
+    static void groupMembershipChanged()
+    {
+        groupMembershipChangedLocally();
+        BookmarkClusterTask.groupMembershipChanged();
+    }
+
+    /**
+     * Invalidates the bookmarks that were resolved for all users on this cluster node.
+     */
+    static void groupMembershipChangedLocally()
+    {
+        groupMembershipVersion.incrementAndGet();
+    }
+
+    /**
+     * Signals that a user has joined or left a group. When bookmarks have been assigned to
+     * the group, only the bookmarks that were resolved for that user are invalidated.
+     *
+     * @param groupName the name of the group.
+     * @param member    the address of the user that joined or left the group.
+     */
+    static void groupMemberChanged(String groupName, JID member)
+    {
+        // Nothing has been resolved for any user while the catalog has not been loaded.
+        final BookmarkCatalog current = catalog;
+        if (current != null && !current.getBookmarkIDsForGroup(groupName).isEmpty() && member.getNode() != null) {
+            evictUsersLocally(Collections.singleton(member.getNode()));
+            BookmarkClusterTask.evictUsers(Collections.singleton(member.getNode()));
+        }
+    }
+
+    /**
+     * Invalidates the bookmarks that were resolved for all members and administrators of a
+     * group, provided that bookmarks have been assigned to the group.
+     *
+     * @param group the group.
+     */
+    private static void evictGroupMembers(Group group)
+    {
+        final BookmarkCatalog current = catalog;
+        if (current == null || current.getBookmarkIDsForGroup(group.getName()).isEmpty()) {
+            return;
+        }
+        evictUsers(group);
+    }
+
+    private static void evictUsers(Group group)
+    {
+        final Set<String> usernames = new TreeSet<String>();
+        for (JID member : group.getMembers()) {
+            if (member.getNode() != null) {
+                usernames.add(member.getNode());
+            }
+        }
+        for (JID admin : group.getAdmins()) {
+            if (admin.getNode() != null) {
+                usernames.add(admin.getNode());
+            }
+        }
+        evictUsersLocally(usernames);
+        // Send the names rather than the group, so that the other nodes don't have to
+        // resolve its members again.
+        BookmarkClusterTask.evictUsers(usernames);
+    }
+
+    /**
+     * Invalidates the bookmarks that were resolved for users on this cluster node.
+     *
+     * @param usernames the names of the users.
+     */
+    static void evictUsersLocally(Collection<String> usernames)
+    {
+        evictionVersion.incrementAndGet();
+        for (String username : usernames) {
+            userBookmarksCache.remove(username);
+        }
+    }
+
+    /**
+     * Moves the bookmark permissions of a group that has been renamed to its new name,
+     * both in the database and in the catalog.
+     *
+     * @param oldName the previous name of the group.
+     * @param group   the renamed group.
+     */
+    static void groupRenamed(String oldName, Group group)
+    {
+        // Without a catalog, it is unknown whether any bookmark names the group.
+        final BookmarkCatalog current = catalog;
+        final Set<Long> bookmarkIDs = current == null ? Collections.<Long>emptySet() : current.getBookmarkIDsForGroup(oldName);
+        if (current != null && bookmarkIDs.isEmpty()) {
+            return;
+        }
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(RENAME_GROUP_PERMISSIONS);
+            pstmt.setString(1, group.getName());
+            pstmt.setInt(2, Bookmark.GROUPS);
+            pstmt.setString(3, oldName);
+            pstmt.executeUpdate();
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+            abortTransaction = true;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+
+        synchronized (CATALOG_LOCK) {
+            // Apply all renamed bookmarks to the catalog at once, rather than one by one.
+            final List<Bookmark> renamed = new ArrayList<Bookmark>(bookmarkIDs.size());
+            for (Long bookmarkID : bookmarkIDs) {
+                final Bookmark bookmark = catalog.getBookmark(bookmarkID);
+                if (bookmark == null) {
+                    continue;
+                }
+                final Bookmark copy = bookmark.copy();
+                copy.getGroups().remove(oldName);
+                copy.getGroups().add(group.getName());
+                renamed.add(copy.snapshot());
+            }
+            if (!renamed.isEmpty()) {
+                catalog = catalog.with(renamed);
+            }
+        }
+        if (current == null) {
+            // The bookmarks that name the group are unknown here, but may be known elsewhere.
+            BookmarkClusterTask.reloadCatalog();
+        }
+        else {
+            BookmarkClusterTask.reloadBookmarks(bookmarkIDs);
+        }
+        // The same users are targeted as before, but the group may have gained
+        // members while its permissions were being moved.
+        evictGroupMembers(group);
+    }
+
+    /**
+     * Removes the bookmark permissions of a group that is being deleted, both from the
+     * database and from the catalog, and invalidates the bookmarks that were resolved for
+     * its members and administrators.
+     * <p/>
+     * This is called before the group is deleted, while its members can still be resolved.
+     * As the permissions are removed from the catalog before the members are evicted, users
+     * whose bookmarks are resolved before the group is actually gone no longer receive the
+     * bookmarks of the group either, so no eviction is needed after the deletion.
+     *
+     * @param group the group that is being deleted.
+     */
+    static void groupDeleting(Group group)
+    {
+        // Without a catalog, it is unknown whether any bookmark names the group.
+        final BookmarkCatalog current = catalog;
+        final Set<Long> bookmarkIDs = current == null ? Collections.<Long>emptySet() : current.getBookmarkIDsForGroup(group.getName());
+        if (current != null && bookmarkIDs.isEmpty()) {
+            return;
+        }
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(DELETE_GROUP_PERMISSIONS);
+            pstmt.setInt(1, Bookmark.GROUPS);
+            pstmt.setString(2, group.getName());
+            final int deleted = pstmt.executeUpdate();
+            if (deleted > 0) {
+                Log.info("Removed " + deleted + " bookmark permission(s) of deleted group " + group.getName());
+            }
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+            abortTransaction = true;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+
+        synchronized (CATALOG_LOCK) {
+            final List<Bookmark> changed = new ArrayList<Bookmark>(bookmarkIDs.size());
+            for (Long bookmarkID : bookmarkIDs) {
+                final Bookmark bookmark = catalog.getBookmark(bookmarkID);
+                if (bookmark == null) {
+                    continue;
+                }
+                final Bookmark copy = bookmark.copy();
+                copy.getGroups().remove(group.getName());
+                changed.add(copy.snapshot());
+            }
+            if (!changed.isEmpty()) {
+                catalog = catalog.with(changed);
+            }
+        }
+        if (current == null) {
+            BookmarkClusterTask.reloadCatalog();
+        }
+        else {
+            BookmarkClusterTask.reloadBookmarks(bookmarkIDs);
+        }
+        evictUsers(group);
+    }
+
+    private static Cache<String, UserBookmarks> createUserBookmarksCache()
+    {
+        final Cache<String, UserBookmarks> cache = CacheFactory.createLocalCache("Bookmarks By User");
+        final int size = JiveGlobals.getIntProperty("bookmarks.cache.user.size", 1024 * 1024);
+        cache.setMaxCacheSize(size);
+        cache.setMaxLifetime(JiveGlobals.getLongProperty("bookmarks.cache.user.maxLifetime", JiveConstants.HOUR * 6));
+        return cache;
+    }
+
+    /**
+     * Resolves the IDs of all bookmarks in a catalog that apply to a user. The cost of this
+     * depends on the number of groups of the user and the number of matches, not on the
+     * size of the catalog.
+     *
+     * @param catalog  the catalog to resolve against.
+     * @param username the name of the user.
+     * @return the sorted set of bookmark IDs.
+     */
+    private static SortedSet<Long> getBookmarkIDsForUser(BookmarkCatalog catalog, String username)
+    {
+        final SortedSet<Long> bookmarkIDs = new TreeSet<Long>(catalog.getGlobalBookmarkIDs());
+        bookmarkIDs.addAll(catalog.getBookmarkIDsForUser(username));
+
+        final JID jid = XMPPServer.getInstance().createJID(username, null);
+        for (Group group : GroupManager.getInstance().getGroups(jid)) {
+            bookmarkIDs.addAll(catalog.getBookmarkIDsForGroup(group.getName()));
+        }
+        return bookmarkIDs;
+    }
+
     /**
      * Broadcasts groupchat notification message to all users of a bookmark.
      *
@@ -204,31 +620,474 @@ public class BookmarkManager {
     }
 
     /**
-     * Returns all bookmarks.
+     * Returns all bookmarks. When the catalog has been disabled, all bookmarks are read
+     * from the database on each call, and are not kept in memory afterwards. Prefer
+     * {@link #getBookmarkPage(Bookmark.Type, BookmarkPage.Sort, int, String)} for listings.
      *
      * @return the collection of bookmarks.
      */
     public static Collection<Bookmark> getBookmarks() {
-        // TODO: add caching.
-        List<Bookmark> bookmarks = new ArrayList<Bookmark>();
+        if (!isCatalogEnabled()) {
+            return loadBookmarks();
+        }
+        final Collection<Bookmark> snapshots = getCatalog().getBookmarks();
+        final List<Bookmark> bookmarks = new ArrayList<Bookmark>(snapshots.size());
+        for (Bookmark bookmark : snapshots) {
+            bookmarks.add(bookmark.copy());
+        }
+        return bookmarks;
+    }
+
+    /**
+     * Returns the current in-memory snapshot of all bookmarks. The catalog is loaded from
+     * the database when it is first requested; after that, it is kept up to date by
+     * {@link #bookmarkSaved(Bookmark)} and {@link #deleteBookmark(long)}. As this keeps all
+     * bookmarks in memory, it must not be called while the catalog is disabled (see
+     * {@link #isCatalogEnabled()}).
+     * <p/>
+     * In a cluster, every node keeps its own catalog. Changes are applied to the catalogs of
+     * the other nodes by sending them a {@link BookmarkClusterTask}.
+     *
+     * @return the current bookmark catalog.
+     */
+    static BookmarkCatalog getCatalog() {
+        BookmarkCatalog result = catalog;
+        if (result == null) {
+            synchronized (CATALOG_LOCK) {
+                if (catalog == null) {
+                    catalog = createCatalog(0, null);
+                }
+                result = catalog;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards the in-memory snapshot of all bookmarks and reloads it from the database.
+     * When the catalog has been disabled and has not been loaded on demand, this does nothing.
+     */
+    public static void reloadCatalog() {
+        reloadCatalogLocally();
+        BookmarkClusterTask.reloadCatalog();
+    }
+
+    /**
+     * Reloads the catalog of this cluster node only.
+     *
+     * @see #reloadCatalog()
+     */
+    static void reloadCatalogLocally() {
+        synchronized (CATALOG_LOCK) {
+            if (catalog == null && !isCatalogEnabled()) {
+                // Don't load what isn't kept in memory.
+                return;
+            }
+            catalog = createCatalog(catalog == null ? 0 : catalog.getVersion() + 1, catalog);
+            targetingVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reloads specific bookmarks from the database into the catalog, after they have been
+     * written by other means than {@link Bookmark} (such as a migration). Bookmarks that no
+     * longer exist are removed from the catalog. As the users and groups of the bookmarks may
+     * have changed in any way, the bookmarks that were resolved for all users are invalidated.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks to reload.
+     */
+    static void reloadBookmarks(Collection<Long> bookmarkIDs) {
+        reloadBookmarksLocally(bookmarkIDs);
+        BookmarkClusterTask.reloadBookmarks(bookmarkIDs);
+    }
+
+    /**
+     * Reloads specific bookmarks into the catalog of this cluster node only.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks to reload.
+     * @see #reloadBookmarks(Collection)
+     */
+    static void reloadBookmarksLocally(Collection<Long> bookmarkIDs) {
+        if (catalog == null) {
+            // Nothing has been loaded or resolved yet.
+            return;
+        }
+        final Map<Long, Bookmark> bookmarks = loadBookmarks(bookmarkIDs);
+        if (bookmarks == null) {
+            return;
+        }
+        final List<Bookmark> snapshots = new ArrayList<Bookmark>(bookmarks.size());
+        for (Bookmark bookmark : bookmarks.values()) {
+            snapshots.add(bookmark.snapshot());
+        }
+        final List<Long> removed = new ArrayList<Long>(bookmarkIDs);
+        removed.removeAll(bookmarks.keySet());
+
+        synchronized (CATALOG_LOCK) {
+            if (catalog == null) {
+                return;
+            }
+            catalog = catalog.with(snapshots);
+            if (!removed.isEmpty()) {
+                catalog = catalog.without(removed);
+            }
+            targetingVersion.incrementAndGet();
+        }
+    }
+
+    private static BookmarkCatalog createCatalog(long version, BookmarkCatalog previous) {
+        final Collection<Bookmark> bookmarks = loadBookmarks();
+        final List<Bookmark> snapshots = new ArrayList<Bookmark>(bookmarks.size());
+        for (Bookmark bookmark : bookmarks) {
+            snapshots.add(bookmark.snapshot());
+        }
+        return new BookmarkCatalog(version, snapshots, previous);
+    }
+
+    /**
+     * Checks if bookmarks are kept in an in-memory catalog. This can be disabled with the
+     * <tt>bookmarks.catalog.enabled</tt> property for deployments that cannot afford to keep
+     * all bookmarks in memory, in which case the bookmarks of a user are read from the
+     * database with {@link #loadBookmarksForUser(String)} whenever they are requested.
+     *
+     * @return true if bookmarks are resolved from the in-memory catalog.
+     */
+    static boolean isCatalogEnabled() {
+        return JiveGlobals.getBooleanProperty("bookmarks.catalog.enabled", true);
+    }
+
+    /**
+     * Returns the parsed avatar of a group chat bookmark.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the avatar, or null when there is no such bookmark, or when it has no avatar.
+     * @see #isCatalogEnabled()
+     */
+    static BookmarkAvatar getAvatar(long bookmarkID) {
+        if (!isCatalogEnabled()) {
+            try {
+                return BookmarkAvatar.parse(new Bookmark(bookmarkID));
+            }
+            catch (NotFoundException e) {
+                return null;
+            }
+        }
+        return getCatalog().getAvatar(bookmarkID);
+    }
+
+    /**
+     * Replaces the catalog entry of a bookmark after it has been written to the database.
+     * The other nodes of a cluster reload the bookmark from the database.
+     *
+     * @param bookmark the bookmark that was saved.
+     */
+    static void bookmarkSaved(Bookmark bookmark) {
+        replaceInCatalog(bookmark);
+        BookmarkClusterTask.reloadBookmarks(Collections.singleton(bookmark.getBookmarkID()));
+    }
+
+    private static void replaceInCatalog(Bookmark bookmark) {
+        final Bookmark snapshot = bookmark.snapshot();
+        final Set<String> groupNames = new TreeSet<String>();
+        synchronized (CATALOG_LOCK) {
+            if (catalog == null) {
+                return;
+            }
+            final Bookmark previous = catalog.getBookmark(snapshot.getBookmarkID());
+            catalog = catalog.with(snapshot);
+
+            if (previous == null ? snapshot.isGlobalBookmark()
+                    : previous.isGlobalBookmark() || snapshot.isGlobalBookmark()) {
+                // A global bookmark applies to every user, so all resolved bookmarks are stale
+                // when one is added, or when a bookmark is made global or no longer global.
+                if (previous == null || previous.isGlobalBookmark() != snapshot.isGlobalBookmark()) {
+                    targetingVersion.incrementAndGet();
+                }
+                return;
+            }
+
+            // Only the users and groups that were added or removed are affected.
+            final Collection<String> previousUsers = previous == null ? Collections.<String>emptySet() : previous.getUsers();
+            final Collection<String> previousGroups = previous == null ? Collections.<String>emptySet() : previous.getGroups();
+            for (String username : Bookmark.difference(previousUsers, snapshot.getUsers())) {
+                userBookmarksCache.remove(username);
+            }
+            for (String username : Bookmark.difference(snapshot.getUsers(), previousUsers)) {
+                userBookmarksCache.remove(username);
+            }
+            groupNames.addAll(Bookmark.difference(previousGroups, snapshot.getGroups()));
+            groupNames.addAll(Bookmark.difference(snapshot.getGroups(), previousGroups));
+        }
+
+        // Resolving the members of a group can be slow (for instance, with an LDAP group
+        // provider), so it is done after the lock has been released. Results that have been
+        // resolved against the new catalog in the meantime are correct, while the results that
+        // were cached before are evicted here.
+        for (String groupName : groupNames) {
+            evictGroupMembers(groupName);
+        }
+    }
+
+    private static void evictGroupMembers(String groupName) {
+        final Group group;
+        try {
+            group = GroupManager.getInstance().getGroup(groupName);
+        }
+        catch (GroupNotFoundException e) {
+            // A group that doesn't exist has no members to evict.
+            return;
+        }
+        evictUsers(group);
+    }
+
+    /**
+     * Loads all bookmarks, including their permissions and properties, from the database,
+     * with a fixed number of queries.
+     *
+     * @return the collection of fully populated bookmarks, ordered by bookmark ID.
+     * @see BookmarkLoader
+     */
+    static Collection<Bookmark> loadBookmarks() {
+        Connection con = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            return BookmarkLoader.load(con);
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+            return new ArrayList<Bookmark>();
+        }
+        finally {
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    /**
+     * Loads specific bookmarks, including their permissions and properties, from the database.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks.
+     * @return the bookmarks that exist, by ID, or null if they could not be loaded.
+     */
+    private static Map<Long, Bookmark> loadBookmarks(Collection<Long> bookmarkIDs) {
+        final List<Long> ids = new ArrayList<Long>(bookmarkIDs);
+        // Stay well below the limits that some databases put on the length of an IN list.
+        final int chunkSize = 500;
+
+        final Map<Long, Bookmark> bookmarks = new TreeMap<Long, Bookmark>();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            for (int offset = 0; offset < ids.size(); offset += chunkSize) {
+                pstmt = prepareInStatement(con, LOAD_BOOKMARKS_WHERE + "bookmarkID IN ",
+                        ids.subList(offset, Math.min(offset + chunkSize, ids.size())));
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final long bookmarkID = rs.getLong(1);
+                    try {
+                        bookmarks.put(bookmarkID, new Bookmark(bookmarkID, Bookmark.Type.valueOf(rs.getString(2)),
+                                rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                                new ArrayList<String>(), new ArrayList<String>(), new Hashtable<String, String>()));
+                    }
+                    catch (IllegalArgumentException e) {
+                        Log.error("Unable to load bookmark " + bookmarkID, e);
+                    }
+                }
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+            loadPermissionsAndProperties(con, bookmarks, chunkSize, true);
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+            return null;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return bookmarks;
+    }
+
+    /**
+     * Loads the bookmarks that apply to a user from the database: the global bookmarks, the
+     * bookmarks that have been assigned to the user directly, and the bookmarks that have
+     * been assigned to any of the groups that the user belongs to. Unlike
+     * {@link #getBookmarksForUser(String)}, this does not use the in-memory catalog.
+     * <p/>
+     * The bookmarks are selected with a single query, unless the user belongs to more groups
+     * than are bound per query (the <tt>bookmarks.query.groups.chunksize</tt> property), in
+     * which case the remaining group names are bound in additional queries.
+     *
+     * @param username the name of the user.
+     * @return the fully populated bookmarks, ordered by bookmark ID.
+     */
+    public static List<Bookmark> loadBookmarksForUser(String username) {
+        final List<String> groupNames = new ArrayList<String>();
+        if (username != null) {
+            for (Group group : GroupManager.getInstance().getGroups(XMPPServer.getInstance().createJID(username, null))) {
+                groupNames.add(group.getName());
+            }
+        }
+        final int chunkSize = Math.max(1, JiveGlobals.getIntProperty("bookmarks.query.groups.chunksize", 100));
 
+        final Map<Long, Bookmark> bookmarks = new TreeMap<Long, Bookmark>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
         try {
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SELECT_BOOKMARKS);
+
+            int offset = 0;
+            do {
+                final List<String> chunk = groupNames.subList(offset, Math.min(offset + chunkSize, groupNames.size()));
+                final StringBuilder sql = new StringBuilder(LOAD_BOOKMARKS_WHERE);
+                if (offset == 0) {
+                    sql.append(GLOBAL_OR_USER_BOOKMARKS);
+                    if (!chunk.isEmpty()) {
+                        sql.append(" OR ");
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    appendPlaceholders(sql.append(GROUP_BOOKMARKS), chunk.size()).append(')');
+                }
+
+                pstmt = con.prepareStatement(sql.toString());
+                int index = 1;
+                if (offset == 0) {
+                    pstmt.setInt(index++, Bookmark.USERS);
+                    pstmt.setString(index++, username);
+                }
+                if (!chunk.isEmpty()) {
+                    pstmt.setInt(index++, Bookmark.GROUPS);
+                    for (String groupName : chunk) {
+                        pstmt.setString(index++, groupName);
+                    }
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final long bookmarkID = rs.getLong(1);
+                    if (bookmarks.containsKey(bookmarkID)) {
+                        continue;
+                    }
+                    try {
+                        bookmarks.put(bookmarkID, new Bookmark(bookmarkID, Bookmark.Type.valueOf(rs.getString(2)),
+                                rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                                new ArrayList<String>(), new ArrayList<String>(), new Hashtable<String, String>()));
+                    }
+                    catch (IllegalArgumentException e) {
+                        Log.error("Unable to load bookmark " + bookmarkID, e);
+                    }
+                }
+                DbConnectionManager.closeStatement(rs, pstmt);
+                offset += chunkSize;
+            }
+            while (offset < groupNames.size());
+
+            // Load the permissions and properties of the selected bookmarks only.
+            loadPermissionsAndProperties(con, bookmarks, chunkSize, true);
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        return new ArrayList<Bookmark>(bookmarks.values());
+    }
+
+    /**
+     * Returns one page of bookmarks, including their permissions and properties, read from
+     * the database. Only the bookmarks on the page are read, so the cost of a page does not
+     * depend on the total number of bookmarks.
+     *
+     * @param type     the type of the bookmarks to list, or null to list bookmarks of all types.
+     * @param sort     the order of the listing.
+     * @param pageSize the maximum number of bookmarks on the page.
+     * @param cursor   the cursor of the page, as returned by {@link BookmarkPage#getNextCursor()},
+     *                 or null for the first page.
+     * @return the page.
+     * @throws IllegalArgumentException if the cursor is not valid for the order of the listing.
+     */
+    public static BookmarkPage getBookmarkPage(Bookmark.Type type, BookmarkPage.Sort sort, int pageSize, String cursor) {
+        return getBookmarkPage(type, sort, pageSize, cursor, true);
+    }
+
+    /**
+     * Returns one page of bookmarks, read from the database. The users and groups of the
+     * bookmarks are only loaded when requested; pages that only summarize them can use
+     * {@link #getPermissionSummaries(Collection, int)} instead.
+     *
+     * @param type               the type of the bookmarks to list, or null to list bookmarks of all types.
+     * @param sort               the order of the listing.
+     * @param pageSize           the maximum number of bookmarks on the page.
+     * @param cursor             the cursor of the page, or null for the first page.
+     * @param includePermissions true to load the users and groups of the bookmarks.
+     * @return the page.
+     * @throws IllegalArgumentException if the cursor is not valid for the order of the listing.
+     */
+    public static BookmarkPage getBookmarkPage(Bookmark.Type type, BookmarkPage.Sort sort, int pageSize, String cursor,
+                                               boolean includePermissions) {
+        final StringBuilder sql = new StringBuilder(LOAD_BOOKMARKS_WHERE).append("1=1");
+        if (type != null) {
+            sql.append(" AND bookmarkType=?");
+        }
+        if (cursor != null) {
+            if (sort == BookmarkPage.Sort.id) {
+                sql.append(" AND bookmarkID>?");
+            }
+            else {
+                sql.append(" AND (").append(sort.getColumn()).append(">? OR (")
+                        .append(sort.getColumn()).append("=? AND bookmarkID>?))");
+            }
+        }
+        sql.append(" ORDER BY ");
+        if (sort != BookmarkPage.Sort.id) {
+            sql.append(sort.getColumn()).append(", ");
+        }
+        sql.append("bookmarkID");
+
+        final Map<Long, Bookmark> bookmarks = new LinkedHashMap<Long, Bookmark>();
+        boolean hasNextPage = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(sql.toString());
+            // Read one more row than requested, to find out if there is a next page.
+            DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, pageSize + 1);
+            int index = 1;
+            if (type != null) {
+                pstmt.setString(index++, type.toString());
+            }
+            if (cursor != null) {
+                if (sort != BookmarkPage.Sort.id) {
+                    final String key = BookmarkPage.getCursorKey(cursor);
+                    pstmt.setString(index++, key);
+                    pstmt.setString(index++, key);
+                }
+                pstmt.setLong(index++, BookmarkPage.getCursorID(cursor));
+            }
             rs = pstmt.executeQuery();
             while (rs.next()) {
-                long bookmarkID = rs.getLong(1);
+                if (bookmarks.size() == pageSize) {
+                    hasNextPage = true;
+                    break;
+                }
+                final long bookmarkID = rs.getLong(1);
                 try {
-                    Bookmark bookmark = new Bookmark(bookmarkID);
-                    bookmarks.add(bookmark);
+                    bookmarks.put(bookmarkID, new Bookmark(bookmarkID, Bookmark.Type.valueOf(rs.getString(2)),
+                            rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                            new ArrayList<String>(), new ArrayList<String>(), new Hashtable<String, String>()));
                 }
-                catch (NotFoundException nfe) {
-                    Log.error(nfe.getMessage(), nfe);
+                catch (IllegalArgumentException e) {
+                    Log.error("Unable to load bookmark " + bookmarkID, e);
                 }
             }
+            DbConnectionManager.closeStatement(rs, pstmt);
+
+            loadPermissionsAndProperties(con, bookmarks, Math.max(1, pageSize), includePermissions);
         }
         catch (SQLException e) {
             Log.error(e.getMessage(), e);
@@ -237,29 +1096,348 @@ public class BookmarkManager {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
 
-        return bookmarks;
+        final List<Bookmark> page = new ArrayList<Bookmark>(bookmarks.values());
+        final String nextCursor = hasNextPage && !page.isEmpty()
+                ? BookmarkPage.createCursor(sort, page.get(page.size() - 1)) : null;
+        return new BookmarkPage(page, nextCursor);
     }
 
     /**
-     * Deletes a bookmark with the specified bookmark ID.
+     * Loads the permissions and properties of bookmarks that have been read from the database,
+     * binding the IDs of the bookmarks in chunks.
      *
-     * @param bookmarkID the ID of the bookmark to remove from the database.
+     * @param con                the database connection.
+     * @param bookmarks          the bookmarks, by ID.
+     * @param chunkSize          the maximum number of IDs to bind in one query.
+     * @param includePermissions false to load the properties only.
+     * @throws SQLException if the permissions or properties could not be read.
      */
-    public static void deleteBookmark(long bookmarkID) {
+    private static void loadPermissionsAndProperties(Connection con, Map<Long, Bookmark> bookmarks, int chunkSize,
+                                                     boolean includePermissions) throws SQLException {
+        final List<Long> bookmarkIDs = new ArrayList<Long>(bookmarks.keySet());
+        for (int offset = 0; offset < bookmarkIDs.size(); offset += chunkSize) {
+            final List<Long> chunk = bookmarkIDs.subList(offset, Math.min(offset + chunkSize, bookmarkIDs.size()));
+
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                if (includePermissions) {
+                    pstmt = prepareInStatement(con, LOAD_PERMISSIONS_IN, chunk);
+                    rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        final Bookmark bookmark = bookmarks.get(rs.getLong(1));
+                        if (rs.getInt(2) == Bookmark.USERS) {
+                            bookmark.getUsers().add(rs.getString(3));
+                        }
+                        else {
+                            bookmark.getGroups().add(rs.getString(3));
+                        }
+                    }
+                    DbConnectionManager.closeStatement(rs, pstmt);
+                }
+
+                pstmt = prepareInStatement(con, LOAD_PROPERTIES_IN, chunk);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    bookmarks.get(rs.getLong(1)).getPropertyMap().put(rs.getString(2), rs.getString(3));
+                }
+            }
+            finally {
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+        }
+    }
+
+    /**
+     * Loads a bookmark and its properties from the database, but not its users and groups.
+     * This is meant for pages that summarize a bookmark, together with
+     * {@link #getPermissionSummaries(Collection, int)}.
+     *
+     * @param bookmarkID the ID of the bookmark.
+     * @return the bookmark, without users and groups.
+     * @throws NotFoundException if the bookmark does not exist.
+     */
+    public static Bookmark getBookmarkWithoutPermissions(long bookmarkID) throws NotFoundException {
+        final Map<Long, Bookmark> bookmarks = new LinkedHashMap<Long, Bookmark>();
         Connection con = null;
         PreparedStatement pstmt = null;
-
+        ResultSet rs = null;
         try {
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(DELETE_BOOKMARK);
+            pstmt = con.prepareStatement(LOAD_BOOKMARKS_WHERE + "bookmarkID=?");
             pstmt.setLong(1, bookmarkID);
-            pstmt.execute();
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                bookmarks.put(bookmarkID, new Bookmark(bookmarkID, Bookmark.Type.valueOf(rs.getString(2)),
+                        rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                        new ArrayList<String>(), new ArrayList<String>(), new Hashtable<String, String>()));
+            }
+            DbConnectionManager.closeStatement(rs, pstmt);
+
+            loadPermissionsAndProperties(con, bookmarks, 1, false);
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        catch (IllegalArgumentException e) {
+            Log.error("Unable to load bookmark " + bookmarkID, e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        final Bookmark bookmark = bookmarks.get(bookmarkID);
+        if (bookmark == null) {
+            throw new NotFoundException("Bookmark not found: " + bookmarkID);
+        }
+        return bookmark;
+    }
+
+    /**
+     * Counts the bookmarks of each type with a single aggregate query.
+     *
+     * @return the number of global and targeted bookmarks of each type.
+     */
+    public static BookmarkCounts getBookmarkCounts() {
+        final BookmarkCounts counts = new BookmarkCounts();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(COUNT_BOOKMARKS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                try {
+                    counts.add(Bookmark.Type.valueOf(rs.getString(1)), rs.getInt(2) == 1, rs.getInt(3));
+                }
+                catch (IllegalArgumentException e) {
+                    Log.error("Unknown bookmark type " + rs.getString(1), e);
+                }
+            }
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return counts;
+    }
+
+    /**
+     * Summarizes the permissions of bookmarks. The users and groups of the bookmarks are
+     * counted with an aggregate query, and their names are read for all bookmarks at once;
+     * only the first names (in alphabetical order) of each are kept. Both queries are
+     * executed once for every 500 bookmarks, rather than once for every bookmark.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks.
+     * @param limit       the maximum number of user and group names to read for each bookmark.
+     * @return the summaries, by bookmark ID. Every requested ID has a summary.
+     */
+    public static Map<Long, BookmarkPermissionSummary> getPermissionSummaries(Collection<Long> bookmarkIDs, int limit) {
+        final Map<Long, BookmarkPermissionSummary> summaries = new LinkedHashMap<Long, BookmarkPermissionSummary>();
+        for (Long bookmarkID : bookmarkIDs) {
+            summaries.put(bookmarkID, new BookmarkPermissionSummary());
+        }
+        final List<Long> ids = new ArrayList<Long>(summaries.keySet());
+        // Stay well below the limits that some databases put on the length of an IN list.
+        final int chunkSize = 500;
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            for (int offset = 0; offset < ids.size(); offset += chunkSize) {
+                final List<Long> chunk = ids.subList(offset, Math.min(offset + chunkSize, ids.size()));
+                pstmt = con.prepareStatement(appendPlaceholders(new StringBuilder(COUNT_PERMISSIONS_IN), chunk.size())
+                        .append(" GROUP BY bookmarkID, bookmarkType").toString());
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setLong(i + 1, chunk.get(i));
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    summaries.get(rs.getLong(1)).setCount(rs.getInt(2), rs.getInt(3));
+                }
+                DbConnectionManager.closeStatement(rs, pstmt);
+            }
+
+            if (limit > 0) {
+                for (int offset = 0; offset < ids.size(); offset += chunkSize) {
+                    final List<Long> chunk = ids.subList(offset, Math.min(offset + chunkSize, ids.size()));
+                    pstmt = con.prepareStatement(appendPlaceholders(new StringBuilder(LOAD_PERMISSION_NAMES_IN), chunk.size())
+                            .append(" ORDER BY bookmarkID, bookmarkType, name").toString());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        pstmt.setLong(i + 1, chunk.get(i));
+                    }
+                    rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        // The names beyond the limit of a bookmark are skipped here.
+                        summaries.get(rs.getLong(1)).addName(rs.getInt(2), rs.getString(3), limit);
+                    }
+                    DbConnectionManager.closeStatement(rs, pstmt);
+                }
+            }
+        }
+        catch (SQLException e) {
+            Log.error(e.getMessage(), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return summaries;
+    }
+
+    private static PreparedStatement prepareInStatement(Connection con, String sql, List<Long> bookmarkIDs) throws SQLException {
+        final PreparedStatement pstmt = con.prepareStatement(appendPlaceholders(new StringBuilder(sql), bookmarkIDs.size()).toString());
+        for (int i = 0; i < bookmarkIDs.size(); i++) {
+            pstmt.setLong(i + 1, bookmarkIDs.get(i));
+        }
+        return pstmt;
+    }
+
+    private static StringBuilder appendPlaceholders(StringBuilder sql, int count) {
+        sql.append('(');
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')');
+    }
+
+    /**
+     * Imports bookmarks from an XML or JSON document, which is read as a stream. The catalog
+     * is reloaded once, after all bookmarks have been written.
+     *
+     * @param in     the document.
+     * @param format the format of the document.
+     * @return the number of imported bookmarks, and any errors that occurred.
+     * @see BookmarkImporter
+     */
+    public static BookmarkImporter.Result importBookmarks(InputStream in, BookmarkImporter.Format format) {
+        final BookmarkImporter.Result result = new BookmarkImporter().importBookmarks(in, format);
+        if (result.getImported() > 0) {
+            reloadCatalog();
+        }
+        Log.info("Bookmark import completed: " + result);
+        return result;
+    }
+
+    /**
+     * Exports all bookmarks, including their permissions and properties, as an XML or JSON
+     * document that can be imported with {@link #importBookmarks(InputStream, BookmarkImporter.Format)}.
+     * The bookmarks are read from the database (not from the catalog) and written as they are
+     * read, so that the export does not depend on the size of the catalog.
+     *
+     * @param out    the stream to write the document to. The stream is not closed.
+     * @param format the format of the document.
+     * @throws IOException if the bookmarks could not be read or written.
+     * @see BookmarkExporter
+     */
+    public static void exportBookmarks(OutputStream out, BookmarkImporter.Format format) throws IOException {
+        final long start = System.currentTimeMillis();
+        new BookmarkExporter().export(out, format);
+        Log.info("Bookmark export completed in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Deletes a bookmark with the specified bookmark ID, including its permissions and
+     * properties, in one transaction.
+     *
+     * @param bookmarkID the ID of the bookmark to remove from the database.
+     */
+    public static void deleteBookmark(long bookmarkID) {
+        deleteBookmarks(Collections.singleton(bookmarkID));
+    }
+
+    /**
+     * Deletes bookmarks, including their permissions and properties. The bookmarks are
+     * deleted in batches (of <tt>bookmarks.delete.batchsize</tt> bookmarks), each in its own
+     * transaction, so that a large cleanup does not result in one huge transaction. A batch
+     * that fails is rolled back entirely, and its bookmarks remain available.
+     * <p/>
+     * The deleted bookmarks are removed from the catalog. The bookmarks that were resolved
+     * for users don't have to be invalidated, as bookmarks that are no longer in the catalog
+     * are skipped.
+     *
+     * @param bookmarkIDs the IDs of the bookmarks to remove from the database.
+     */
+    public static void deleteBookmarks(Collection<Long> bookmarkIDs) {
+        final List<Long> ids = new ArrayList<Long>(bookmarkIDs);
+        final int batchSize = Math.max(1, JiveGlobals.getIntProperty("bookmarks.delete.batchsize", 500));
+        for (int offset = 0; offset < ids.size(); offset += batchSize) {
+            final List<Long> batch = ids.subList(offset, Math.min(offset + batchSize, ids.size()));
+            if (!deleteFromDb(batch)) {
+                continue;
+            }
+            removeBookmarksLocally(batch);
+            BookmarkClusterTask.removeBookmarks(batch);
+        }
+    }
+
+    /**
+     * Removes deleted bookmarks from the catalog of this cluster node.
+     *
+     * @param bookmarkIDs the IDs of the deleted bookmarks.
+     */
+    static void removeBookmarksLocally(Collection<Long> bookmarkIDs) {
+        synchronized (CATALOG_LOCK) {
+            if (catalog != null) {
+                catalog = catalog.without(bookmarkIDs);
+            }
+        }
+    }
+
+    private static boolean deleteFromDb(List<Long> bookmarkIDs) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            // Delete the rows that refer to the bookmarks before the bookmarks themselves.
+            for (String sql : new String[] { DELETE_BOOKMARK_PERMISSIONS, DELETE_BOOKMARK_PROPERTIES, DELETE_BOOKMARK }) {
+                pstmt = con.prepareStatement(sql);
+                for (Long bookmarkID : bookmarkIDs) {
+                    pstmt.setLong(1, bookmarkID);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                DbConnectionManager.fastcloseStmt(pstmt);
+            }
         }
         catch (SQLException e) {
             Log.error(e.getMessage(), e);
+            abortTransaction = true;
         }
         finally {
-            DbConnectionManager.closeConnection(pstmt, con);
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+        return !abortTransaction;
+    }
+
+    /**
+     * The IDs of the bookmarks that apply to a user, as resolved against a specific targeting
+     * generation and group membership generation. The entry is stale as soon as either of
+     * these has changed. Changes that only affect some users evict their entries instead.
+     */
+    private static class UserBookmarks implements Cacheable, Serializable {
+
+        private final long targetingVersion;
+        private final long groupVersion;
+        private final List<Long> bookmarkIDs;
+
+        UserBookmarks(long targetingVersion, long groupVersion, Collection<Long> bookmarkIDs) {
+            this.targetingVersion = targetingVersion;
+            this.groupVersion = groupVersion;
+            this.bookmarkIDs = new ArrayList<Long>(bookmarkIDs);
+        }
+
+        boolean isValid(long targetingVersion, long groupVersion) {
+            return this.targetingVersion == targetingVersion && this.groupVersion == groupVersion;
+        }
+
+        public int getCachedSize() {
+            return CacheSizes.sizeOfObject() + CacheSizes.sizeOfLong() * (2 + bookmarkIDs.size());
         }
     }
 }
@@ -0,0 +1,332 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically removes permissions and properties that are no longer of any use.
+ * <p/>
+ * Older versions of this plugin did not delete the permissions and properties of a bookmark
+ * together with the bookmark. This task finds the rows that refer to a bookmark that no
+ * longer exists, and deletes them. Optionally (through the
+ * <tt>bookmarks.orphans.stalepermissions.enabled</tt> property), it also deletes permissions
+ * for users and groups that no longer exist. This is not done by default, as a user or group
+ * provider that is temporarily unavailable would otherwise cause valid permissions to be
+ * deleted.
+ * <p/>
+ * The tables are scanned in chunks, in the order of their primary key, and each chunk is
+ * deleted in a short transaction of its own, followed by a pause. No locks are therefore held
+ * for long, and other database activity is not starved.
+ */
+public class BookmarkOrphanScanner extends TimerTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkOrphanScanner.class);
+
+    private static final String FIND_ORPHANED_PERMISSIONS =
+            "SELECT DISTINCT p.bookmarkID FROM ofBookmarkPerm p LEFT JOIN ofBookmark b ON p.bookmarkID=b.bookmarkID " +
+                    "WHERE b.bookmarkID IS NULL AND p.bookmarkID>? ORDER BY p.bookmarkID";
+    private static final String FIND_ORPHANED_PROPERTIES =
+            "SELECT DISTINCT p.bookmarkID FROM ofBookmarkProp p LEFT JOIN ofBookmark b ON p.bookmarkID=b.bookmarkID " +
+                    "WHERE b.bookmarkID IS NULL AND p.bookmarkID>? ORDER BY p.bookmarkID";
+    private static final String DELETE_PERMISSIONS = "DELETE FROM ofBookmarkPerm WHERE bookmarkID=?";
+    private static final String DELETE_PROPERTIES = "DELETE FROM ofBookmarkProp WHERE bookmarkID=?";
+    private static final String LOAD_PERMISSIONS_AFTER =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm WHERE bookmarkID>? OR " +
+                    "(bookmarkID=? AND (bookmarkType>? OR (bookmarkType=? AND name>?))) " +
+                    "ORDER BY bookmarkID, bookmarkType, name";
+    private static final String DELETE_PERMISSION =
+            "DELETE FROM ofBookmarkPerm WHERE bookmarkID=? AND bookmarkType=? AND name=?";
+
+    private volatile Report lastReport;
+
+    /**
+     * Schedules this task with the task engine, as configured by the
+     * <tt>bookmarks.orphans.enabled</tt> and <tt>bookmarks.orphans.interval</tt> properties.
+     * The first scan is done shortly after the plugin has been started.
+     */
+    public void start() {
+        if (!JiveGlobals.getBooleanProperty("bookmarks.orphans.enabled", true)) {
+            return;
+        }
+        final long interval = JiveGlobals.getLongProperty("bookmarks.orphans.interval", JiveConstants.DAY);
+        TaskEngine.getInstance().schedule(this, JiveConstants.MINUTE * 5, interval);
+    }
+
+    /**
+     * Cancels this task.
+     */
+    public void stop() {
+        TaskEngine.getInstance().cancelScheduledTask(this);
+    }
+
+    /**
+     * Returns the report of the most recent scan.
+     *
+     * @return the report, or null if no scan has completed yet.
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public void run() {
+        final int chunkSize = Math.max(1, JiveGlobals.getIntProperty("bookmarks.orphans.chunksize", 500));
+        final long pause = JiveGlobals.getLongProperty("bookmarks.orphans.pause", 100);
+        final Report report = new Report();
+        try {
+            report.orphanedPermissions = deleteOrphans(FIND_ORPHANED_PERMISSIONS, DELETE_PERMISSIONS, chunkSize, pause);
+            report.orphanedProperties = deleteOrphans(FIND_ORPHANED_PROPERTIES, DELETE_PROPERTIES, chunkSize, pause);
+            if (JiveGlobals.getBooleanProperty("bookmarks.orphans.stalepermissions.enabled", false)) {
+                report.stalePermissions = deleteStalePermissions(chunkSize, pause);
+                if (report.stalePermissions > 0) {
+                    BookmarkManager.reloadCatalog();
+                }
+            }
+        }
+        catch (SQLException e) {
+            Log.error("Unable to remove orphaned bookmark permissions and properties.", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report.finished = System.currentTimeMillis();
+        lastReport = report;
+        Log.info("Bookmark orphan scan completed: " + report);
+    }
+
+    /**
+     * Deletes the rows that refer to bookmarks that no longer exist.
+     *
+     * @param findSql   the query that finds the IDs of missing bookmarks that are referred to.
+     * @param deleteSql the statement that deletes the rows of one bookmark ID.
+     * @return the number of deleted rows.
+     */
+    private static int deleteOrphans(String findSql, String deleteSql, int chunkSize, long pause)
+            throws SQLException, InterruptedException {
+        int deleted = 0;
+        long lastBookmarkID = Long.MIN_VALUE;
+        while (true) {
+            final List<Long> bookmarkIDs = new ArrayList<Long>(chunkSize);
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(findSql);
+                DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, chunkSize);
+                pstmt.setLong(1, lastBookmarkID);
+                rs = pstmt.executeQuery();
+                while (rs.next() && bookmarkIDs.size() < chunkSize) {
+                    bookmarkIDs.add(rs.getLong(1));
+                }
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+            if (bookmarkIDs.isEmpty()) {
+                return deleted;
+            }
+
+            deleted += deleteInTransaction(deleteSql, bookmarkIDs);
+            lastBookmarkID = bookmarkIDs.get(bookmarkIDs.size() - 1);
+            Thread.sleep(pause);
+        }
+    }
+
+    private static int deleteInTransaction(String deleteSql, List<Long> bookmarkIDs) throws SQLException {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(deleteSql);
+            for (Long bookmarkID : bookmarkIDs) {
+                pstmt.setLong(1, bookmarkID);
+                pstmt.addBatch();
+            }
+            return countUpdates(pstmt.executeBatch());
+        }
+        catch (SQLException e) {
+            abortTransaction = true;
+            throw e;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
+    /**
+     * Deletes the permissions of users and groups that no longer exist.
+     *
+     * @return the number of deleted permissions.
+     */
+    private static int deleteStalePermissions(int chunkSize, long pause) throws SQLException, InterruptedException {
+        final UserManager userManager = UserManager.getInstance();
+        final GroupManager groupManager = GroupManager.getInstance();
+
+        int deleted = 0;
+        long lastBookmarkID = Long.MIN_VALUE;
+        int lastType = Integer.MIN_VALUE;
+        String lastName = "";
+        while (true) {
+            final List<Object[]> stale = new ArrayList<Object[]>();
+            int rows = 0;
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(LOAD_PERMISSIONS_AFTER);
+                DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, chunkSize);
+                pstmt.setLong(1, lastBookmarkID);
+                pstmt.setLong(2, lastBookmarkID);
+                pstmt.setInt(3, lastType);
+                pstmt.setInt(4, lastType);
+                pstmt.setString(5, lastName);
+                rs = pstmt.executeQuery();
+                while (rs.next() && rows < chunkSize) {
+                    rows++;
+                    lastBookmarkID = rs.getLong(1);
+                    lastType = rs.getInt(2);
+                    lastName = rs.getString(3);
+                    if (!exists(userManager, groupManager, lastType, lastName)) {
+                        stale.add(new Object[] { lastBookmarkID, lastType, lastName });
+                    }
+                }
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+            if (rows == 0) {
+                return deleted;
+            }
+
+            if (!stale.isEmpty()) {
+                deleted += deleteStale(stale);
+            }
+            Thread.sleep(pause);
+        }
+    }
+
+    private static boolean exists(UserManager userManager, GroupManager groupManager, int type, String name) {
+        try {
+            if (type == Bookmark.USERS) {
+                userManager.getUser(name);
+            }
+            else {
+                groupManager.getGroup(name);
+            }
+            return true;
+        }
+        catch (UserNotFoundException e) {
+            return false;
+        }
+        catch (GroupNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static int deleteStale(List<Object[]> permissions) throws SQLException {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(DELETE_PERMISSION);
+            for (Object[] permission : permissions) {
+                pstmt.setLong(1, (Long) permission[0]);
+                pstmt.setInt(2, (Integer) permission[1]);
+                pstmt.setString(3, (String) permission[2]);
+                pstmt.addBatch();
+            }
+            return countUpdates(pstmt.executeBatch());
+        }
+        catch (SQLException e) {
+            abortTransaction = true;
+            throw e;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
+    private static int countUpdates(int[] updateCounts) {
+        int result = 0;
+        for (int count : updateCounts) {
+            // Drivers that don't report the number of rows return SUCCESS_NO_INFO, which is
+            // counted as a single row.
+            result += count == PreparedStatement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+        return result;
+    }
+
+    /**
+     * The number of rows that have been removed by a scan.
+     */
+    public static class Report {
+
+        private final long started = System.currentTimeMillis();
+        private long finished;
+        private int orphanedPermissions;
+        private int orphanedProperties;
+        private int stalePermissions;
+
+        /**
+         * Returns the time at which the scan started, in milliseconds since the epoch.
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Returns the time at which the scan finished, in milliseconds since the epoch.
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns the number of permissions that were removed because their bookmark no longer exists.
+         */
+        public int getOrphanedPermissions() {
+            return orphanedPermissions;
+        }
+
+        /**
+         * Returns the number of properties that were removed because their bookmark no longer exists.
+         */
+        public int getOrphanedProperties() {
+            return orphanedProperties;
+        }
+
+        /**
+         * Returns the number of permissions that were removed because their user or group no longer exists.
+         */
+        public int getStalePermissions() {
+            return stalePermissions;
+        }
+
+        @Override
+        public String toString() {
+            return "removed " + orphanedPermissions + " orphaned permission(s), " + orphanedProperties
+                    + " orphaned propert(ies) and " + stalePermissions + " stale permission(s) in "
+                    + (finished - started) + " ms";
+        }
+    }
+}
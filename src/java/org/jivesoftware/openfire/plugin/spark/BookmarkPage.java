@@ -0,0 +1,118 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a bookmark listing, as returned by
+ * {@link BookmarkManager#getBookmarkPage(Bookmark.Type, Sort, int, String)}.
+ * <p/>
+ * Pages are addressed by a cursor, rather than by an offset: the cursor identifies the last
+ * bookmark of the previous page, so that the database can seek to the start of the next page
+ * instead of reading and skipping all preceding rows.
+ */
+public class BookmarkPage {
+
+    /**
+     * The order in which bookmarks are listed. Bookmarks that have the same name or value are
+     * ordered by their ID.
+     */
+    public enum Sort {
+
+        /**
+         * Orders bookmarks by their ID, which is the order in which they were created.
+         */
+        id("bookmarkID"),
+
+        /**
+         * Orders bookmarks by their name.
+         */
+        name("bookmarkName"),
+
+        /**
+         * Orders bookmarks by their value (the URL, or the address of the room).
+         */
+        value("bookmarkValue");
+
+        private final String column;
+
+        Sort(String column) {
+            this.column = column;
+        }
+
+        String getColumn() {
+            return column;
+        }
+    }
+
+    private final List<Bookmark> bookmarks;
+    private final String nextCursor;
+
+    BookmarkPage(List<Bookmark> bookmarks, String nextCursor) {
+        this.bookmarks = Collections.unmodifiableList(bookmarks);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returns the bookmarks on this page, including their permissions and properties.
+     *
+     * @return the bookmarks, in the requested order.
+     */
+    public List<Bookmark> getBookmarks() {
+        return bookmarks;
+    }
+
+    /**
+     * Returns the cursor of the next page.
+     *
+     * @return the cursor that addresses the next page, or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Creates the cursor that addresses the page after a bookmark.
+     *
+     * @param sort     the order of the listing.
+     * @param bookmark the last bookmark on a page.
+     * @return the cursor.
+     */
+    static String createCursor(Sort sort, Bookmark bookmark) {
+        switch (sort) {
+            case name:
+                return bookmark.getBookmarkID() + ":" + bookmark.getName();
+            case value:
+                return bookmark.getBookmarkID() + ":" + bookmark.getValue();
+            default:
+                return Long.toString(bookmark.getBookmarkID());
+        }
+    }
+
+    /**
+     * Returns the bookmark ID of a cursor.
+     *
+     * @param cursor the cursor.
+     * @return the bookmark ID of the last bookmark on the previous page.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    static long getCursorID(String cursor) {
+        final int separator = cursor.indexOf(':');
+        return Long.parseLong(separator < 0 ? cursor : cursor.substring(0, separator));
+    }
+
+    /**
+     * Returns the sort key of a cursor.
+     *
+     * @param cursor the cursor.
+     * @return the name or value of the last bookmark on the previous page.
+     * @throws IllegalArgumentException if the cursor does not hold a sort key.
+     */
+    static String getCursorKey(String cursor) {
+        final int separator = cursor.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Cursor does not have a sort key: " + cursor);
+        }
+        return cursor.substring(separator + 1);
+    }
+}
@@ -0,0 +1,74 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The number of users and groups that have been assigned a bookmark, and the first few of
+ * their names. This allows the permissions of a bookmark to be summarized without loading
+ * all of them.
+ *
+ * @see BookmarkManager#getPermissionSummaries(java.util.Collection, int)
+ */
+public class BookmarkPermissionSummary {
+
+    private int userCount;
+    private int groupCount;
+    private final List<String> users = new ArrayList<String>();
+    private final List<String> groups = new ArrayList<String>();
+
+    void setCount(int type, int count) {
+        if (type == Bookmark.USERS) {
+            userCount = count;
+        }
+        else {
+            groupCount = count;
+        }
+    }
+
+    void addName(int type, String name, int limit) {
+        final List<String> names = type == Bookmark.USERS ? users : groups;
+        if (names.size() < limit) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Returns the number of users that have been assigned the bookmark.
+     *
+     * @return the number of users.
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Returns the number of groups that have been assigned the bookmark.
+     *
+     * @return the number of groups.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Returns the first names, in alphabetical order, of the users that have been assigned
+     * the bookmark.
+     *
+     * @return at most the requested number of usernames.
+     */
+    public List<String> getUsers() {
+        return Collections.unmodifiableList(users);
+    }
+
+    /**
+     * Returns the first names, in alphabetical order, of the groups that have been assigned
+     * the bookmark.
+     *
+     * @return at most the requested number of group names.
+     */
+    public List<String> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+}
@@ -0,0 +1,60 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+
+/**
+ * Answers vCard requests that are addressed to group chat bookmarks that have an avatar.
+ * <p/>
+ * Conference rooms are addressed through the multi-user chat service, which does not
+ * serve vCards itself. Requests for these rooms therefore cannot be handled by a regular
+ * IQ handler of the server, and are processed by this handler from the
+ * {@link BookmarkInterceptor} instead. Every request is recognized with a single lookup in
+ * the bookmark catalog. When the catalog has been disabled, requests are left alone rather
+ * than looked up in the database, and avatars are only available through the servlet.
+ */
+final class BookmarkVCardHandler {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkVCardHandler.class);
+
+    /**
+     * Processes a <tt>vcard-temp</tt> IQ stanza. Requests for a bookmark with an avatar are
+     * answered with the vCard of the bookmark. Errors that are returned for such requests
+     * (as the room itself does not support vCards) are to be discarded, as the request has
+     * already been answered.
+     *
+     * @param iq       the vCard stanza.
+     * @param incoming true if the stanza is being received by the server.
+     * @return true if the stanza has been dealt with, and should not be processed any further.
+     */
+    boolean process(IQ iq, boolean incoming) {
+        final String key;
+        if (iq.getType() == IQ.Type.get && incoming && iq.getTo() != null) {
+            key = iq.getTo().toString();
+        }
+        else if (iq.getType() == IQ.Type.error && !incoming && iq.getFrom() != null) {
+            key = iq.getFrom().toString();
+        }
+        else {
+            return false;
+        }
+
+        final BookmarkAvatar avatar = BookmarkManager.findAvatar(key);
+        if (avatar == null) {
+            return false;
+        }
+
+        if (iq.getType() == IQ.Type.get) {
+            final IQ reply = IQ.createResultIQ(iq);
+            reply.setChildElement(avatar.createVCard());
+
+            if (Log.isDebugEnabled()) {
+                Log.debug("process reply \n" + reply);
+            }
+            XMPPServer.getInstance().getIQRouter().route(reply);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,453 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TimerTask;
+import java.util.TreeSet;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.JiveID;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the bookmarks of the Enterprise plugin (the <tt>entBookmark</tt>,
+ * <tt>entBookmarkPerm</tt> and <tt>entBookmarkProp</tt> tables) into the tables of this
+ * plugin, while Openfire is running.
+ * <p/>
+ * Unlike the <tt>import_*.sql</tt> scripts, which copy all tables in one go, this task copies
+ * the bookmarks in chunks, in the order of their ID. Each chunk, including the permissions and
+ * properties of its bookmarks, is copied in a transaction of its own, followed by a pause.
+ * Existing rows are never deleted or replaced. Before the first chunk is copied, the tables of
+ * this plugin are checked for bookmarks, permissions and properties that have the ID of an
+ * Enterprise bookmark that is yet to be copied, but that were not copied from it. If any are
+ * found, the migration stops without copying anything, and reports their IDs (see
+ * {@link Progress#getCollisions()}). A bookmark that already exists with the same columns as
+ * the Enterprise bookmark is one that has been copied already (by a chunk that was committed
+ * just before the migration was interrupted), and is skipped.
+ * <p/>
+ * The bookmark ID sequence is moved past the highest ID of the Enterprise bookmarks as well, so
+ * that bookmarks that are created while the migration runs don't collide with a later chunk.
+ * The bookmarks of each chunk are refreshed in the catalog as soon as the chunk has been copied.
+ * <p/>
+ * The migration is started by setting the <tt>bookmarks.migration.enterprise.enabled</tt>
+ * property, after which it runs when the plugin is started. The ID of the last copied bookmark
+ * is stored in the <tt>bookmarks.migration.enterprise.lastid</tt> property after each chunk, so
+ * that a migration that is interrupted (for instance, by a restart) continues where it left off.
+ * When all bookmarks have been copied, the catalog is reloaded, and the migration disables
+ * itself. The progress of the migration is available through {@link #getProgress()}.
+ */
+public class EnterpriseBookmarkMigration extends TimerTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(EnterpriseBookmarkMigration.class);
+
+    private static final String ENABLED_PROPERTY = "bookmarks.migration.enterprise.enabled";
+    private static final String LAST_ID_PROPERTY = "bookmarks.migration.enterprise.lastid";
+
+    private static final String COUNT_BOOKMARKS = "SELECT COUNT(*) FROM entBookmark WHERE bookmarkID>?";
+    private static final String FIND_CHUNK =
+            "SELECT bookmarkID FROM entBookmark WHERE bookmarkID>? ORDER BY bookmarkID";
+    private static final String FIND_COLLIDING_BOOKMARKS =
+            "SELECT o.bookmarkID FROM ofBookmark o JOIN entBookmark b ON o.bookmarkID=b.bookmarkID " +
+                    "WHERE b.bookmarkID>? AND (o.bookmarkType<>b.bookmarkType OR o.bookmarkName<>b.bookmarkName " +
+                    "OR o.bookmarkValue<>b.bookmarkValue OR o.isGlobal<>b.isGlobal) ORDER BY o.bookmarkID";
+    private static final String FIND_COLLIDING_PERMISSIONS =
+            "SELECT DISTINCT p.bookmarkID FROM ofBookmarkPerm p JOIN entBookmark b ON p.bookmarkID=b.bookmarkID " +
+                    "WHERE b.bookmarkID>? AND NOT EXISTS (SELECT 1 FROM ofBookmark o WHERE o.bookmarkID=p.bookmarkID) " +
+                    "ORDER BY p.bookmarkID";
+    private static final String FIND_COLLIDING_PROPERTIES =
+            "SELECT DISTINCT p.bookmarkID FROM ofBookmarkProp p JOIN entBookmark b ON p.bookmarkID=b.bookmarkID " +
+                    "WHERE b.bookmarkID>? AND NOT EXISTS (SELECT 1 FROM ofBookmark o WHERE o.bookmarkID=p.bookmarkID) " +
+                    "ORDER BY p.bookmarkID";
+    // The permissions and properties are copied before the bookmarks, as only those of the
+    // bookmarks that have not been copied yet are copied.
+    private static final String COPY_PERMISSIONS =
+            "INSERT INTO ofBookmarkPerm (bookmarkID, bookmarkType, name) " +
+                    "SELECT p.bookmarkID, p.bookmarkType, p.name FROM entBookmarkPerm p " +
+                    "JOIN entBookmark b ON p.bookmarkID=b.bookmarkID WHERE b.bookmarkID>? AND b.bookmarkID<=? " +
+                    "AND NOT EXISTS (SELECT 1 FROM ofBookmark o WHERE o.bookmarkID=b.bookmarkID)";
+    private static final String COPY_PROPERTIES =
+            "INSERT INTO ofBookmarkProp (bookmarkID, name, propValue) " +
+                    "SELECT p.bookmarkID, p.name, p.propValue FROM entBookmarkProp p " +
+                    "JOIN entBookmark b ON p.bookmarkID=b.bookmarkID WHERE b.bookmarkID>? AND b.bookmarkID<=? " +
+                    "AND NOT EXISTS (SELECT 1 FROM ofBookmark o WHERE o.bookmarkID=b.bookmarkID)";
+    private static final String COPY_BOOKMARKS =
+            "INSERT INTO ofBookmark (bookmarkID, bookmarkType, bookmarkName, bookmarkValue, isGlobal) " +
+                    "SELECT b.bookmarkID, b.bookmarkType, b.bookmarkName, b.bookmarkValue, b.isGlobal " +
+                    "FROM entBookmark b WHERE b.bookmarkID>? AND b.bookmarkID<=? " +
+                    "AND NOT EXISTS (SELECT 1 FROM ofBookmark o WHERE o.bookmarkID=b.bookmarkID)";
+    private static final String MAX_ENTERPRISE_BOOKMARK_ID = "SELECT MAX(bookmarkID) FROM entBookmark";
+    private static final String LOAD_SEQUENCE = "SELECT id FROM ofID WHERE idType=?";
+    private static final String CREATE_SEQUENCE = "INSERT INTO ofID (id, idType) VALUES (?,?)";
+    private static final String UPDATE_SEQUENCE = "UPDATE ofID SET id=? WHERE idType=? AND id<?";
+
+    private static final int BOOKMARK_SEQUENCE = Bookmark.class.getAnnotation(JiveID.class).value();
+    private static final int MAX_REPORTED_COLLISIONS = 100;
+
+    private volatile boolean stopped;
+    private volatile Progress progress;
+
+    /**
+     * Schedules this task with the task engine, if the migration has been enabled with the
+     * <tt>bookmarks.migration.enterprise.enabled</tt> property.
+     */
+    public void start() {
+        if (!JiveGlobals.getBooleanProperty(ENABLED_PROPERTY, false)) {
+            return;
+        }
+        TaskEngine.getInstance().schedule(this, JiveConstants.SECOND * 10);
+    }
+
+    /**
+     * Cancels this task. A migration that is running stops after the chunk that it is copying,
+     * and continues from there when it is started again.
+     */
+    public void stop() {
+        stopped = true;
+        TaskEngine.getInstance().cancelScheduledTask(this);
+    }
+
+    /**
+     * Returns the progress of the migration that was started most recently.
+     *
+     * @return the progress, or null if no migration has been started since the plugin was started.
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    @Override
+    public void run() {
+        final int chunkSize = Math.max(1, JiveGlobals.getIntProperty("bookmarks.migration.enterprise.chunksize", 500));
+        final long pause = JiveGlobals.getLongProperty("bookmarks.migration.enterprise.pause", 100);
+        long lastBookmarkID = JiveGlobals.getLongProperty(LAST_ID_PROPERTY, Long.MIN_VALUE);
+        final Progress current = new Progress(lastBookmarkID);
+        progress = current;
+        try {
+            current.total = countRemaining(lastBookmarkID);
+            Log.info("Migrating " + current.total + " bookmark(s) from the Enterprise plugin" +
+                    (lastBookmarkID == Long.MIN_VALUE ? "." : ", continuing after bookmark " + lastBookmarkID + "."));
+
+            final SortedSet<Long> collisions = findCollisions(lastBookmarkID);
+            if (!collisions.isEmpty()) {
+                current.collisions = Collections.unmodifiableList(new ArrayList<Long>(collisions));
+                current.failed = true;
+                Log.error("Unable to migrate bookmarks from the Enterprise plugin: bookmarks, permissions or properties " +
+                        "with the IDs of Enterprise bookmarks already exist (" + collisions + "). Nothing has been copied. " +
+                        "Remove or recreate these bookmarks, and start the plugin again.");
+                return;
+            }
+
+            // New bookmarks must not be given an ID that is yet to be copied.
+            updateSequence();
+
+            while (!stopped) {
+                final List<Long> chunk = findChunk(lastBookmarkID, chunkSize);
+                if (chunk.isEmpty()) {
+                    finish();
+                    current.completed = true;
+                    return;
+                }
+                final long toBookmarkID = chunk.get(chunk.size() - 1);
+                copyChunk(lastBookmarkID, toBookmarkID);
+                BookmarkManager.reloadBookmarks(chunk);
+
+                lastBookmarkID = toBookmarkID;
+                JiveGlobals.setProperty(LAST_ID_PROPERTY, Long.toString(lastBookmarkID));
+                current.lastBookmarkID = lastBookmarkID;
+                current.copied += chunk.size();
+                Log.info("Migrated " + current.copied + " of " + current.total + " bookmark(s) from the Enterprise plugin.");
+                Thread.sleep(pause);
+            }
+            Log.info("Migration of bookmarks from the Enterprise plugin stopped after bookmark " + lastBookmarkID + ".");
+        }
+        catch (SQLException e) {
+            current.failed = true;
+            Log.error("Unable to migrate bookmarks from the Enterprise plugin. The migration continues after bookmark "
+                    + lastBookmarkID + " when the plugin is started again.", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            current.finished = System.currentTimeMillis();
+        }
+    }
+
+    private static long countRemaining(long lastBookmarkID) throws SQLException {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(COUNT_BOOKMARKS);
+            pstmt.setLong(1, lastBookmarkID);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Finds the bookmarks of this plugin that have the ID of an Enterprise bookmark that is yet
+     * to be copied, but that were not copied from it, as well as permissions and properties
+     * with such an ID that don't belong to a bookmark. Copying the Enterprise bookmark would
+     * merge it with these rows.
+     *
+     * @param lastBookmarkID the ID of the last bookmark that has been copied.
+     * @return the colliding IDs, of which no more than {@link #MAX_REPORTED_COLLISIONS} are returned.
+     */
+    private static SortedSet<Long> findCollisions(long lastBookmarkID) throws SQLException {
+        final SortedSet<Long> bookmarkIDs = new TreeSet<Long>();
+        Connection con = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            for (String sql : new String[] { FIND_COLLIDING_BOOKMARKS, FIND_COLLIDING_PERMISSIONS, FIND_COLLIDING_PROPERTIES }) {
+                PreparedStatement pstmt = null;
+                ResultSet rs = null;
+                try {
+                    pstmt = con.prepareStatement(sql);
+                    DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, MAX_REPORTED_COLLISIONS);
+                    pstmt.setLong(1, lastBookmarkID);
+                    rs = pstmt.executeQuery();
+                    while (rs.next() && bookmarkIDs.size() < MAX_REPORTED_COLLISIONS) {
+                        bookmarkIDs.add(rs.getLong(1));
+                    }
+                }
+                finally {
+                    DbConnectionManager.closeStatement(rs, pstmt);
+                }
+            }
+            return bookmarkIDs;
+        }
+        finally {
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    /**
+     * Finds the next chunk of bookmarks to copy.
+     *
+     * @param lastBookmarkID the ID of the last bookmark that has been copied.
+     * @return the IDs of the bookmarks in the chunk, in ascending order. The list is empty if
+     *         all bookmarks have been copied.
+     */
+    private static List<Long> findChunk(long lastBookmarkID, int chunkSize) throws SQLException {
+        final List<Long> bookmarkIDs = new ArrayList<Long>(chunkSize);
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(FIND_CHUNK);
+            DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, chunkSize);
+            pstmt.setLong(1, lastBookmarkID);
+            rs = pstmt.executeQuery();
+            while (rs.next() && bookmarkIDs.size() < chunkSize) {
+                bookmarkIDs.add(rs.getLong(1));
+            }
+            return bookmarkIDs;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Copies the Enterprise bookmarks with IDs in a range, including their permissions and
+     * properties, in one transaction. Bookmarks that have been copied already are skipped, so
+     * that a chunk that is copied again after an interruption does not result in duplicates.
+     *
+     * @param fromBookmarkID the ID after which the range starts.
+     * @param toBookmarkID   the last ID of the range.
+     */
+    private static void copyChunk(long fromBookmarkID, long toBookmarkID) throws SQLException {
+        Connection con = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            for (String sql : new String[] { COPY_PERMISSIONS, COPY_PROPERTIES, COPY_BOOKMARKS }) {
+                PreparedStatement pstmt = null;
+                try {
+                    pstmt = con.prepareStatement(sql);
+                    pstmt.setLong(1, fromBookmarkID);
+                    pstmt.setLong(2, toBookmarkID);
+                    pstmt.executeUpdate();
+                }
+                finally {
+                    DbConnectionManager.closeStatement(pstmt);
+                }
+            }
+        }
+        catch (SQLException e) {
+            abortTransaction = true;
+            throw e;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    private static void finish() {
+        JiveGlobals.setProperty(ENABLED_PROPERTY, "false");
+        JiveGlobals.deleteProperty(LAST_ID_PROPERTY);
+        BookmarkManager.reloadCatalog();
+        Log.info("Migration of bookmarks from the Enterprise plugin completed.");
+    }
+
+    /**
+     * Moves the bookmark ID sequence past the highest ID of the Enterprise bookmarks, so that
+     * new bookmarks don't get the ID of a copied bookmark. The sequence manager allocates
+     * bookmark IDs one at a time, so it reads the moved sequence for the next bookmark.
+     */
+    private static void updateSequence() throws SQLException {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(MAX_ENTERPRISE_BOOKMARK_ID);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                return;
+            }
+            final long maxID = rs.getLong(1);
+            if (rs.wasNull()) {
+                return;
+            }
+            final long nextID = maxID + 1;
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+
+            pstmt = con.prepareStatement(LOAD_SEQUENCE);
+            pstmt.setInt(1, BOOKMARK_SEQUENCE);
+            rs = pstmt.executeQuery();
+            final boolean exists = rs.next();
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+
+            if (exists) {
+                pstmt = con.prepareStatement(UPDATE_SEQUENCE);
+                pstmt.setLong(1, nextID);
+                pstmt.setInt(2, BOOKMARK_SEQUENCE);
+                pstmt.setLong(3, nextID);
+            }
+            else {
+                pstmt = con.prepareStatement(CREATE_SEQUENCE);
+                pstmt.setLong(1, nextID);
+                pstmt.setInt(2, BOOKMARK_SEQUENCE);
+            }
+            pstmt.executeUpdate();
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * The progress of a migration.
+     */
+    public static class Progress {
+
+        private final long started = System.currentTimeMillis();
+        private volatile long finished;
+        private volatile long total;
+        private volatile long copied;
+        private volatile long lastBookmarkID;
+        private volatile boolean completed;
+        private volatile boolean failed;
+        private volatile List<Long> collisions = Collections.emptyList();
+
+        Progress(long lastBookmarkID) {
+            this.lastBookmarkID = lastBookmarkID;
+        }
+
+        /**
+         * Returns the time at which the migration started, in milliseconds since the epoch.
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Returns the time at which the migration finished, in milliseconds since the epoch.
+         *
+         * @return the time, or 0 if the migration is still running.
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns the number of bookmarks that remained to be copied when the migration started.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the number of bookmarks that have been copied since the migration started.
+         */
+        public long getCopied() {
+            return copied;
+        }
+
+        /**
+         * Returns the number of bookmarks that remain to be copied.
+         */
+        public long getRemaining() {
+            return Math.max(0, total - copied);
+        }
+
+        /**
+         * Returns the ID of the last bookmark that has been copied.
+         *
+         * @return the ID, or {@link Long#MIN_VALUE} if no bookmark has been copied yet.
+         */
+        public long getLastBookmarkID() {
+            return lastBookmarkID;
+        }
+
+        /**
+         * Checks if the migration is still running.
+         */
+        public boolean isRunning() {
+            return finished == 0;
+        }
+
+        /**
+         * Checks if all bookmarks have been copied.
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * Checks if the migration stopped because of a database error, or because bookmarks
+         * collide with the Enterprise bookmarks.
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the IDs of the bookmarks, permissions and properties that have the ID of an
+         * Enterprise bookmark, but that were not copied from it. When there are any, the
+         * migration stops before it copies anything.
+         *
+         * @return the colliding IDs (at most 100), in ascending order.
+         */
+        public List<Long> getCollisions() {
+            return collisions;
+        }
+    }
+}
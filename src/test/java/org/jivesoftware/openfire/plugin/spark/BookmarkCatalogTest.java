@@ -0,0 +1,172 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the indexes of {@link BookmarkCatalog}, and that derived catalogs leave the catalog
+ * they were derived from unchanged.
+ */
+public class BookmarkCatalogTest {
+
+    private static Bookmark bookmark(long bookmarkID, String value, boolean global,
+                                     List<String> users, List<String> groups) {
+        return bookmark(bookmarkID, value, global, users, groups, new HashMap<String, String>());
+    }
+
+    private static Bookmark bookmark(long bookmarkID, String value, boolean global,
+                                     List<String> users, List<String> groups, Map<String, String> properties) {
+        return new Bookmark(bookmarkID, Bookmark.Type.group_chat, "Room " + bookmarkID, value, global,
+                users, groups, properties).snapshot();
+    }
+
+    private static List<String> names(String... names) {
+        return Arrays.asList(names);
+    }
+
+    private static Set<Long> ids(Long... ids) {
+        return new HashSet<Long>(Arrays.asList(ids));
+    }
+
+    private static BookmarkCatalog catalog(Bookmark... bookmarks) {
+        return new BookmarkCatalog(1, Arrays.asList(bookmarks), null);
+    }
+
+    @Test
+    public void indexesUsersGroupsAndGlobalBookmarks() {
+        final BookmarkCatalog catalog = catalog(
+                bookmark(1, "a@conference.example.org", false, names("alice", "bob"), names("staff")),
+                bookmark(2, "b@conference.example.org", false, names("alice"), names()),
+                bookmark(3, "c@conference.example.org", true, names(), names()));
+
+        assertEquals(ids(1L, 2L), catalog.getBookmarkIDsForUser("alice"));
+        assertEquals(ids(1L), catalog.getBookmarkIDsForUser("bob"));
+        assertEquals(ids(1L), catalog.getBookmarkIDsForGroup("staff"));
+        assertEquals(ids(3L), catalog.getGlobalBookmarkIDs());
+        assertTrue(catalog.getBookmarkIDsForUser("carol").isEmpty());
+        assertTrue(catalog.getBookmarkIDsForGroup("admins").isEmpty());
+    }
+
+    @Test
+    public void findsBookmarksByExactValue() {
+        final BookmarkCatalog catalog = catalog(
+                bookmark(2, "support@conference.example.org", false, names(), names()),
+                bookmark(1, "support@conference.example.org", false, names(), names()),
+                bookmark(3, "Sales@conference.example.org", false, names(), names()));
+
+        assertEquals(1, catalog.getBookmarkByValue("support@conference.example.org").getBookmarkID());
+        assertEquals(3, catalog.getBookmarkByValue("Sales@conference.example.org").getBookmarkID());
+        assertNull(catalog.getBookmarkByValue("SUPPORT@conference.example.org"));
+        assertNull(catalog.getBookmarkByValue("sales@conference.example.org"));
+        assertNull(catalog.getBookmarkByValue(null));
+    }
+
+    @Test
+    public void withReplacesBookmarkAndLeavesPreviousCatalogUnchanged() {
+        final BookmarkCatalog catalog = catalog(
+                bookmark(1, "a@conference.example.org", false, names("alice", "bob"), names("staff")),
+                bookmark(2, "b@conference.example.org", false, names("bob"), names()));
+
+        final BookmarkCatalog derived = catalog.with(
+                bookmark(1, "x@conference.example.org", false, names("alice", "carol"), names("admins")));
+
+        assertEquals(catalog.getVersion() + 1, derived.getVersion());
+        assertEquals(ids(2L), derived.getBookmarkIDsForUser("bob"));
+        assertEquals(ids(1L), derived.getBookmarkIDsForUser("carol"));
+        assertTrue(derived.getBookmarkIDsForGroup("staff").isEmpty());
+        assertEquals(ids(1L), derived.getBookmarkIDsForGroup("admins"));
+        assertNull(derived.getBookmarkByValue("a@conference.example.org"));
+        assertEquals(1, derived.getBookmarkByValue("x@conference.example.org").getBookmarkID());
+
+        assertEquals(ids(1L, 2L), catalog.getBookmarkIDsForUser("bob"));
+        assertTrue(catalog.getBookmarkIDsForUser("carol").isEmpty());
+        assertEquals(ids(1L), catalog.getBookmarkIDsForGroup("staff"));
+        assertEquals(1, catalog.getBookmarkByValue("a@conference.example.org").getBookmarkID());
+    }
+
+    @Test
+    public void withAddsSeveralBookmarksAtOnce() {
+        final BookmarkCatalog catalog = catalog(bookmark(1, "a@conference.example.org", false, names("alice"), names()));
+
+        final BookmarkCatalog derived = catalog.with(Arrays.asList(
+                bookmark(2, "b@conference.example.org", false, names("alice"), names()),
+                bookmark(3, "c@conference.example.org", true, names(), names())));
+
+        assertEquals(3, derived.getBookmarks().size());
+        assertEquals(ids(1L, 2L), derived.getBookmarkIDsForUser("alice"));
+        assertEquals(ids(3L), derived.getGlobalBookmarkIDs());
+        assertEquals(ids(1L), catalog.getBookmarkIDsForUser("alice"));
+        assertTrue(catalog.getGlobalBookmarkIDs().isEmpty());
+    }
+
+    @Test
+    public void withoutRemovesBookmarkFromAllIndexes() {
+        final BookmarkCatalog catalog = catalog(
+                bookmark(1, "a@conference.example.org", true, names("alice"), names("staff")),
+                bookmark(2, "b@conference.example.org", false, names("alice"), names()));
+
+        final BookmarkCatalog derived = catalog.without(1L);
+
+        assertNull(derived.getBookmark(1));
+        assertEquals(ids(2L), derived.getBookmarkIDsForUser("alice"));
+        assertTrue(derived.getBookmarkIDsForGroup("staff").isEmpty());
+        assertTrue(derived.getGlobalBookmarkIDs().isEmpty());
+        assertNull(derived.getBookmarkByValue("a@conference.example.org"));
+        assertNull(derived.getFragment(1));
+
+        assertNotNull(catalog.getBookmark(1));
+        assertEquals(ids(1L, 2L), catalog.getBookmarkIDsForUser("alice"));
+    }
+
+    @Test
+    public void withoutIgnoresUnknownBookmarks() {
+        final BookmarkCatalog catalog = catalog(bookmark(1, "a@conference.example.org", false, names("alice"), names()));
+
+        final BookmarkCatalog derived = catalog.without(Collections.singleton(42L));
+
+        assertEquals(1, derived.getBookmarks().size());
+        assertEquals(ids(1L), derived.getBookmarkIDsForUser("alice"));
+    }
+
+    @Test
+    public void decodesFlagsAndRendersGlobalBookmarks() {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("autojoin", "true");
+        final BookmarkCatalog catalog = catalog(
+                bookmark(1, "a@conference.example.org", true, names(), names(), properties),
+                bookmark(2, "b@conference.example.org", false, names("alice"), names()));
+
+        assertTrue(BookmarkFlag.autojoin.isSet(catalog.getFlags(1)));
+        assertFalse(BookmarkFlag.nameasnick.isSet(catalog.getFlags(1)));
+        assertEquals(0, catalog.getFlags(2));
+        assertNotNull(catalog.getFragment(1));
+        assertNull(catalog.getFragment(2));
+    }
+
+    @Test
+    public void reusesDerivedDataOfUnchangedBookmarks() {
+        final BookmarkCatalog catalog = catalog(
+                bookmark(1, "a@conference.example.org", true, names(), names()),
+                bookmark(2, "b@conference.example.org", false, names("alice"), names()));
+
+        // A reload passes the unchanged bookmarks again, along with the catalog they came from.
+        final BookmarkCatalog reloaded = new BookmarkCatalog(2, catalog.getBookmarks(), catalog);
+
+        assertSame(catalog.getFragment(1), reloaded.getFragment(1));
+        assertEquals(ids(2L), reloaded.getBookmarkIDsForUser("alice"));
+    }
+}
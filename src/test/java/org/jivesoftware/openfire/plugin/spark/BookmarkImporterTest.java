@@ -0,0 +1,201 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests how {@link BookmarkImporter} reads documents and divides the bookmarks into batches.
+ * Batches are recorded rather than written to a database.
+ */
+public class BookmarkImporterTest {
+
+    private static final String XML_BOOKMARK =
+            "<bookmark><bookmarkID>7</bookmarkID><type>group_chat</type><name>Support</name>" +
+                    "<value>support@conference.example.org</value><globalBookmark>true</globalBookmark>" +
+                    "<users>alice</users><users>bob</users><groups>Staff</groups>" +
+                    "<properties><entry><key>autojoin</key><value>true</value></entry></properties></bookmark>";
+
+    private static final String JSON_BOOKMARK =
+            "{\"bookmarkID\":7,\"type\":\"group_chat\",\"name\":\"Support\"," +
+                    "\"value\":\"support@conference.example.org\",\"globalBookmark\":true," +
+                    "\"users\":[\"alice\",\"bob\"],\"groups\":[\"Staff\"],\"properties\":{\"autojoin\":\"true\"}}";
+
+    private static String xmlURL(int i) {
+        return "<bookmark><type>url</type><name>Site " + i + "</name><value>http://example.org/" + i + "</value></bookmark>";
+    }
+
+    private static BookmarkImporter.Result importDocument(RecordingImporter importer, String document,
+                                                          BookmarkImporter.Format format) {
+        return importer.importBookmarks(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), format);
+    }
+
+    private static void assertSupportBookmark(Bookmark bookmark) {
+        assertEquals(0, bookmark.getBookmarkID());
+        assertEquals(Bookmark.Type.group_chat, bookmark.getType());
+        assertEquals("Support", bookmark.getName());
+        assertEquals("support@conference.example.org", bookmark.getValue());
+        assertTrue(bookmark.isGlobalBookmark());
+        assertEquals(Arrays.asList("alice", "bob"), bookmark.getUsers());
+        assertEquals(Arrays.asList("Staff"), bookmark.getGroups());
+        assertEquals("true", bookmark.getProperty("autojoin"));
+    }
+
+    @Test
+    public void readsXML() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer,
+                "<bookmarks>" + XML_BOOKMARK + "</bookmarks>", BookmarkImporter.Format.xml);
+
+        assertEquals(1, result.getImported());
+        assertTrue(result.getErrors().isEmpty());
+        assertSupportBookmark(importer.getWritten().get(0));
+    }
+
+    @Test
+    public void readsJSON() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer,
+                "[" + JSON_BOOKMARK + "]", BookmarkImporter.Format.json);
+
+        assertEquals(1, result.getImported());
+        assertTrue(result.getErrors().isEmpty());
+        assertSupportBookmark(importer.getWritten().get(0));
+    }
+
+    @Test
+    public void readsEmptyJSONArray() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer, " [ ] ", BookmarkImporter.Format.json);
+
+        assertEquals(0, result.getImported());
+        assertTrue(result.getErrors().isEmpty());
+    }
+
+    @Test
+    public void skipsBookmarksWithoutValidTypeNameOrValue() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer, "<bookmarks>" +
+                "<bookmark><type>unknown</type><name>A</name><value>a</value></bookmark>" +
+                "<bookmark><type>url</type><value>b</value></bookmark>" +
+                "<bookmark><type>url</type><name>C</name></bookmark>" +
+                xmlURL(1) + "</bookmarks>", BookmarkImporter.Format.xml);
+
+        assertEquals(1, result.getImported());
+        assertEquals(3, result.getSkipped());
+    }
+
+    @Test
+    public void writesFullBatchesAndTheRemainder() {
+        final RecordingImporter importer = new RecordingImporter(2);
+        final StringBuilder document = new StringBuilder("<bookmarks>");
+        for (int i = 0; i < 5; i++) {
+            document.append(xmlURL(i));
+        }
+        document.append("</bookmarks>");
+
+        final BookmarkImporter.Result result = importDocument(importer, document.toString(), BookmarkImporter.Format.xml);
+
+        assertEquals(5, result.getImported());
+        assertEquals(Arrays.asList(2, 2, 1), importer.getBatchSizes());
+    }
+
+    @Test
+    public void writesBookmarksReadBeforeAnXMLError() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer,
+                "<bookmarks>" + xmlURL(1) + xmlURL(2) + "<bookmark><type>url", BookmarkImporter.Format.xml);
+
+        assertEquals(2, result.getImported());
+        assertEquals(1, result.getErrors().size());
+    }
+
+    @Test
+    public void writesBookmarksReadBeforeAJSONError() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        final BookmarkImporter.Result result = importDocument(importer,
+                "[" + JSON_BOOKMARK + ", {\"type\":", BookmarkImporter.Format.json);
+
+        assertEquals(1, result.getImported());
+        assertEquals(1, result.getErrors().size());
+    }
+
+    @Test
+    public void countsBatchesThatCannotBeWrittenAsFailed() {
+        final RecordingImporter importer = new RecordingImporter(2);
+        importer.failing = true;
+
+        final BookmarkImporter.Result result = importDocument(importer,
+                "<bookmarks>" + xmlURL(1) + xmlURL(2) + xmlURL(3) + "</bookmarks>", BookmarkImporter.Format.xml);
+
+        assertEquals(0, result.getImported());
+        assertEquals(3, result.getFailed());
+        assertEquals(2, result.getErrors().size());
+    }
+
+    @Test
+    public void doesNotResolveExternalEntities() {
+        final RecordingImporter importer = new RecordingImporter(10);
+
+        importDocument(importer, "<?xml version=\"1.0\"?>" +
+                "<!DOCTYPE bookmarks [<!ENTITY secret SYSTEM \"file:///etc/passwd\">]>" +
+                "<bookmarks><bookmark><type>url</type><name>&secret;</name>" +
+                "<value>http://example.org</value></bookmark></bookmarks>", BookmarkImporter.Format.xml);
+
+        for (Bookmark bookmark : importer.getWritten()) {
+            assertFalse(bookmark.getName().contains("root:"));
+        }
+    }
+
+    /**
+     * An importer that records the batches it is asked to write.
+     */
+    private static class RecordingImporter extends BookmarkImporter {
+
+        private final List<List<Bookmark>> batches = new ArrayList<List<Bookmark>>();
+        private boolean failing;
+
+        RecordingImporter(int batchSize) {
+            super(batchSize);
+        }
+
+        @Override
+        void write(List<Bookmark> pending) throws SQLException {
+            if (failing) {
+                throw new SQLException("Unable to write the batch.");
+            }
+            batches.add(new ArrayList<Bookmark>(pending));
+        }
+
+        List<Bookmark> getWritten() {
+            final List<Bookmark> result = new ArrayList<Bookmark>();
+            for (List<Bookmark> batch : batches) {
+                result.addAll(batch);
+            }
+            return result;
+        }
+
+        List<Integer> getBatchSizes() {
+            final List<Integer> result = new ArrayList<Integer>();
+            for (List<Bookmark> batch : batches) {
+                result.add(batch.size());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests how {@link BookmarkLoader} merges the rows of the bookmark, permission and property
+ * queries into bookmarks.
+ */
+public class BookmarkLoaderTest {
+
+    @Test
+    public void mergesPermissionsAndPropertiesByBookmarkID() throws Exception {
+        final FakeConnection con = new FakeConnection()
+                .withRows("ofBookmark",
+                        new Object[] { 1L, "group_chat", "Support", "support@conference.example.org", 1 },
+                        new Object[] { 2L, "url", "Site", "http://example.org", 0 })
+                .withRows("ofBookmarkPerm",
+                        new Object[] { 2L, Bookmark.USERS, "alice" },
+                        new Object[] { 1L, Bookmark.GROUPS, "staff" },
+                        new Object[] { 2L, Bookmark.GROUPS, "admins" },
+                        new Object[] { 2L, Bookmark.USERS, "bob" })
+                .withRows("ofBookmarkProp",
+                        new Object[] { 1L, "autojoin", "true" },
+                        new Object[] { 2L, "rss", "true" });
+
+        final List<Bookmark> bookmarks = new ArrayList<Bookmark>(BookmarkLoader.load(con.proxy()));
+
+        assertEquals(2, bookmarks.size());
+        final Bookmark room = bookmarks.get(0);
+        assertEquals(1, room.getBookmarkID());
+        assertEquals(Bookmark.Type.group_chat, room.getType());
+        assertEquals("Support", room.getName());
+        assertEquals("support@conference.example.org", room.getValue());
+        assertTrue(room.isGlobalBookmark());
+        assertTrue(room.getUsers().isEmpty());
+        assertEquals(Arrays.asList("staff"), room.getGroups());
+        assertEquals("true", room.getProperty("autojoin"));
+        assertNull(room.getProperty("rss"));
+
+        final Bookmark site = bookmarks.get(1);
+        assertFalse(site.isGlobalBookmark());
+        assertEquals(Arrays.asList("alice", "bob"), site.getUsers());
+        assertEquals(Arrays.asList("admins"), site.getGroups());
+        assertEquals(Collections.singletonMap("rss", "true"), site.getPropertyMap());
+    }
+
+    @Test
+    public void ignoresRowsOfUnknownBookmarksAndTypes() throws Exception {
+        final FakeConnection con = new FakeConnection()
+                .withRows("ofBookmark",
+                        new Object[] { 1L, "unknown", "Other", "other", 0 },
+                        new Object[] { 2L, "url", "Site", "http://example.org", 0 })
+                .withRows("ofBookmarkPerm",
+                        new Object[] { 1L, Bookmark.USERS, "alice" },
+                        new Object[] { 3L, Bookmark.USERS, "bob" })
+                .withRows("ofBookmarkProp",
+                        new Object[] { 3L, "rss", "true" });
+
+        final List<Bookmark> bookmarks = new ArrayList<Bookmark>(BookmarkLoader.load(con.proxy()));
+
+        assertEquals(1, bookmarks.size());
+        assertEquals(2, bookmarks.get(0).getBookmarkID());
+        assertTrue(bookmarks.get(0).getUsers().isEmpty());
+        assertTrue(bookmarks.get(0).getPropertyMap().isEmpty());
+    }
+}
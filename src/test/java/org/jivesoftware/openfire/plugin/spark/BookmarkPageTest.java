@@ -0,0 +1,71 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Tests the cursors that address the pages of a bookmark listing.
+ */
+public class BookmarkPageTest {
+
+    private static Bookmark bookmark(long bookmarkID, String name, String value) {
+        return new Bookmark(bookmarkID, Bookmark.Type.url, name, value, false,
+                new ArrayList<String>(), new ArrayList<String>(), new HashMap<String, String>());
+    }
+
+    @Test
+    public void idCursorHoldsOnlyTheID() {
+        final String cursor = BookmarkPage.createCursor(BookmarkPage.Sort.id, bookmark(42, "Site", "http://example.org"));
+
+        assertEquals("42", cursor);
+        assertEquals(42, BookmarkPage.getCursorID(cursor));
+    }
+
+    @Test
+    public void nameCursorHoldsTheIDAndName() {
+        final String cursor = BookmarkPage.createCursor(BookmarkPage.Sort.name, bookmark(42, "Site", "http://example.org"));
+
+        assertEquals(42, BookmarkPage.getCursorID(cursor));
+        assertEquals("Site", BookmarkPage.getCursorKey(cursor));
+    }
+
+    @Test
+    public void valueCursorKeepsSeparatorsInTheKey() {
+        final String cursor = BookmarkPage.createCursor(BookmarkPage.Sort.value, bookmark(42, "Site", "http://example.org:8080/a"));
+
+        assertEquals(42, BookmarkPage.getCursorID(cursor));
+        assertEquals("http://example.org:8080/a", BookmarkPage.getCursorKey(cursor));
+    }
+
+    @Test
+    public void cursorKeyCanBeEmpty() {
+        final String cursor = BookmarkPage.createCursor(BookmarkPage.Sort.name, bookmark(7, "", "http://example.org"));
+
+        assertEquals(7, BookmarkPage.getCursorID(cursor));
+        assertEquals("", BookmarkPage.getCursorKey(cursor));
+    }
+
+    @Test
+    public void negativeIDsAreParsed() {
+        assertEquals(-5, BookmarkPage.getCursorID("-5:Site"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCursorWithoutAValidID() {
+        BookmarkPage.getCursorID("Site:42");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCursor() {
+        BookmarkPage.getCursorID("");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeyOfAnIDCursor() {
+        BookmarkPage.getCursorKey("42");
+    }
+}
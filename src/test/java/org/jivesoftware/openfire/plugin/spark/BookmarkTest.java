@@ -0,0 +1,94 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Bookmark}, without a database.
+ */
+public class BookmarkTest {
+
+    private static final long BOOKMARK_ID = 42;
+
+    private static Bookmark bookmark(List<String> users, List<String> groups) {
+        return new Bookmark(BOOKMARK_ID, Bookmark.Type.group_chat, "Support", "support@conference.example.org",
+                false, users, groups, new HashMap<String, String>());
+    }
+
+    private static List<Object> row(int type, String name) {
+        return Arrays.<Object>asList(BOOKMARK_ID, type, name);
+    }
+
+    @Test
+    public void differenceReturnsNamesThatAreNotExcluded() {
+        assertEquals(Arrays.asList("alice", "carol"),
+                new ArrayList<String>(Bookmark.difference(Arrays.asList("alice", "bob", "carol", "alice"), Arrays.asList("bob"))));
+    }
+
+    @Test
+    public void differenceAcceptsNullCollections() {
+        assertTrue(Bookmark.difference(null, Arrays.asList("alice")).isEmpty());
+        assertEquals(Collections.singleton("alice"), Bookmark.difference(Arrays.asList("alice"), null));
+    }
+
+    @Test
+    public void updatePermissionsWritesOnlyTheChangedRows() throws Exception {
+        final FakeConnection con = new FakeConnection().withRows("ofBookmarkPerm",
+                new Object[] { Bookmark.USERS, "alice" }, new Object[] { Bookmark.USERS, "bob" },
+                new Object[] { Bookmark.GROUPS, "staff" });
+
+        bookmark(Arrays.asList("alice", "bob"), Arrays.asList("staff")).updatePermissions(
+                con.proxy(), Arrays.asList("alice", "carol"), Arrays.asList("staff", "admins"), 500);
+
+        assertEquals(Arrays.asList(row(Bookmark.USERS, "bob")), con.getBatchRows("DELETE"));
+        assertEquals(Arrays.asList(row(Bookmark.USERS, "carol"), row(Bookmark.GROUPS, "admins")), con.getBatchRows("INSERT"));
+    }
+
+    @Test
+    public void updatePermissionsComparesWithStoredRowsRatherThanMemory() throws Exception {
+        final FakeConnection con = new FakeConnection().withRows("ofBookmarkPerm", new Object[] { Bookmark.USERS, "alice" });
+        final Bookmark bookmark = bookmark(new ArrayList<String>(Arrays.asList("alice")), new ArrayList<String>());
+
+        // The collection held by the bookmark is changed in place before it is saved.
+        bookmark.getUsers().add("bob");
+        bookmark.updatePermissions(con.proxy(), bookmark.getUsers(), bookmark.getGroups(), 500);
+
+        assertTrue(con.getBatchRows("DELETE").isEmpty());
+        assertEquals(Arrays.asList(row(Bookmark.USERS, "bob")), con.getBatchRows("INSERT"));
+    }
+
+    @Test
+    public void updatePermissionsExecutesFullBatches() throws Exception {
+        final FakeConnection con = new FakeConnection();
+
+        bookmark(null, null).updatePermissions(con.proxy(), Arrays.asList("alice", "bob", "carol"), null, 2);
+
+        assertEquals(3, con.getBatchRows("INSERT").size());
+        assertEquals(2, con.getExecutedBatches("INSERT"));
+    }
+
+    @Test
+    public void snapshotIsDetachedAndReadOnly() {
+        final Bookmark bookmark = bookmark(new ArrayList<String>(Arrays.asList("alice")), new ArrayList<String>());
+        final Bookmark snapshot = bookmark.snapshot();
+
+        bookmark.getUsers().add("bob");
+        assertEquals(Arrays.asList("alice"), snapshot.getUsers());
+        try {
+            snapshot.getUsers().add("carol");
+            fail("The users of a snapshot must not be modifiable.");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
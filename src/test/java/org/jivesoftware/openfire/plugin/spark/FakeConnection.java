@@ -0,0 +1,129 @@
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A JDBC connection for tests. Queries return the rows that were provided for the first
+ * table in their FROM clause; the parameters of statements that are added to a batch are
+ * recorded by the first word of their SQL (eg: <tt>INSERT</tt>). Only the methods that the
+ * code under test uses are implemented.
+ */
+class FakeConnection implements InvocationHandler {
+
+    private final Map<String, List<Object[]>> tables = new HashMap<String, List<Object[]>>();
+    private final Map<String, List<List<Object>>> batches = new HashMap<String, List<List<Object>>>();
+    private final Map<String, Integer> executedBatches = new HashMap<String, Integer>();
+
+    /**
+     * Sets the rows that queries on a table return, in the order of the selected columns.
+     */
+    FakeConnection withRows(String table, Object[]... rows) {
+        tables.put(table, Arrays.asList(rows));
+        return this;
+    }
+
+    Connection proxy() {
+        return proxy(Connection.class, this);
+    }
+
+    List<List<Object>> getBatchRows(String command) {
+        final List<List<Object>> result = batches.get(command);
+        return result == null ? Collections.<List<Object>>emptyList() : result;
+    }
+
+    int getExecutedBatches(String command) {
+        final Integer result = executedBatches.get(command);
+        return result == null ? 0 : result;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("prepareStatement")) {
+            return statement((String) args[0]);
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private PreparedStatement statement(final String sql) {
+        final String command = sql.trim().split(" ")[0];
+        final Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                    parameters.put((Integer) args[0], args[1]);
+                }
+                else if (name.equals("addBatch")) {
+                    if (!batches.containsKey(command)) {
+                        batches.put(command, new ArrayList<List<Object>>());
+                    }
+                    batches.get(command).add(new ArrayList<Object>(parameters.values()));
+                }
+                else if (name.equals("executeBatch")) {
+                    executedBatches.put(command, getExecutedBatches(command) + 1);
+                    return new int[0];
+                }
+                else if (name.equals("executeQuery")) {
+                    final String table = sql.substring(sql.indexOf(" FROM ") + 6).trim().split(" ")[0];
+                    final List<Object[]> rows = tables.get(table);
+                    return resultSet(rows == null ? Collections.<Object[]>emptyList() : rows);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static ResultSet resultSet(final List<Object[]> rows) {
+        return proxy(ResultSet.class, new InvocationHandler() {
+            private int index = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("next")) {
+                    return ++index < rows.size();
+                }
+                if (name.equals("getLong")) {
+                    return ((Number) rows.get(index)[(Integer) args[0] - 1]).longValue();
+                }
+                if (name.equals("getInt")) {
+                    return ((Number) rows.get(index)[(Integer) args[0] - 1]).intValue();
+                }
+                if (name.equals("getString")) {
+                    return rows.get(index)[(Integer) args[0] - 1];
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ page import="org.igniterealtime.openfire.plugin.BookmarksPlugin" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkOrphanScanner" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.EnterpriseBookmarkMigration" %>
+<%@ page import="org.jivesoftware.util.JiveGlobals" %>
+<%@ page import="java.util.Date" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+
+<%
+    final BookmarksPlugin plugin = BookmarksPlugin.getInstance();
+    final BookmarkOrphanScanner.Report orphanReport =
+            plugin == null || plugin.getOrphanScanner() == null ? null : plugin.getOrphanScanner().getLastReport();
+    final boolean orphanScanEnabled = JiveGlobals.getBooleanProperty("bookmarks.orphans.enabled", true);
+    final EnterpriseBookmarkMigration.Progress migration =
+            plugin == null || plugin.getEnterpriseMigration() == null ? null : plugin.getEnterpriseMigration().getProgress();
+%>
+
+<html>
+<head>
+    <title><fmt:message key="bookmark.maintenance.title" /></title>
+    <meta name="pageID" content="bookmark-maintenance"/>
+    <style type="text/css">
+        .div-border {
+            border: 1px solid #CCCCCC;
+            -moz-border-radius: 3px;
+        }
+    </style>
+</head>
+
+<body>
+
+<p>
+    <fmt:message key="bookmark.maintenance.description" />
+</p>
+
+<div class="jive-contentBoxHeader"><fmt:message key="bookmark.orphans.title" /></div>
+<div class="div-border" style="padding: 12px; width: 95%;">
+    <% if (!orphanScanEnabled) { %>
+    <p><fmt:message key="bookmark.orphans.disabled" /></p>
+    <% } else if (orphanReport == null) { %>
+    <p><fmt:message key="bookmark.orphans.none" /></p>
+    <% } else { %>
+    <p>
+        <fmt:message key="bookmark.orphans.report">
+            <fmt:param value="<%= new Date(orphanReport.getFinished()) %>"/>
+            <fmt:param value="<%= orphanReport.getFinished() - orphanReport.getStarted() %>"/>
+        </fmt:message>
+    </p>
+    <table class="jive-table" cellspacing="0">
+        <tr>
+            <td><fmt:message key="bookmark.orphans.permissions" /></td>
+            <td><%= orphanReport.getOrphanedPermissions() %></td>
+        </tr>
+        <tr>
+            <td><fmt:message key="bookmark.orphans.properties" /></td>
+            <td><%= orphanReport.getOrphanedProperties() %></td>
+        </tr>
+        <tr>
+            <td><fmt:message key="bookmark.orphans.stale" /></td>
+            <td><%= orphanReport.getStalePermissions() %></td>
+        </tr>
+    </table>
+    <% } %>
+</div>
+<br/>
+
+<div class="jive-contentBoxHeader"><fmt:message key="bookmark.migration.title" /></div>
+<div class="div-border" style="padding: 12px; width: 95%;">
+    <% if (migration == null) { %>
+    <p><fmt:message key="bookmark.migration.none" /></p>
+    <% } else { %>
+    <p>
+        <fmt:message key="bookmark.migration.progress">
+            <fmt:param value="<%= migration.getCopied() %>"/>
+            <fmt:param value="<%= migration.getTotal() %>"/>
+            <fmt:param value="<%= migration.getRemaining() %>"/>
+        </fmt:message>
+    </p>
+    <p>
+        <% if (migration.isRunning()) { %>
+        <fmt:message key="bookmark.migration.running">
+            <fmt:param value="<%= new Date(migration.getStarted()) %>"/>
+        </fmt:message>
+        <% } else if (migration.isCompleted()) { %>
+        <fmt:message key="bookmark.migration.completed">
+            <fmt:param value="<%= new Date(migration.getFinished()) %>"/>
+        </fmt:message>
+        <% } else if (!migration.getCollisions().isEmpty()) { %>
+        <fmt:message key="bookmark.migration.collisions">
+            <fmt:param value="<%= migration.getCollisions() %>"/>
+        </fmt:message>
+        <% } else if (migration.isFailed()) { %>
+        <fmt:message key="bookmark.migration.failed" />
+        <% } else { %>
+        <fmt:message key="bookmark.migration.stopped" />
+        <% } %>
+    </p>
+    <% } %>
+</div>
+
+</body>
+</html>
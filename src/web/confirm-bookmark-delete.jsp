@@ -2,7 +2,9 @@
 <%@ page errorPage="/error.jsp" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.Bookmark" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkManager" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkPermissionSummary" %>
 <%@ page import="java.util.Collection" %>
+<%@ page import="java.util.Collections" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
 
@@ -10,7 +12,8 @@
 <%
     String bookmarkID = request.getParameter("bookmarkID");
 
-    Bookmark bookmark = new Bookmark(Long.parseLong(bookmarkID));
+    // Only the first few users and groups are shown, so don't load all of them.
+    Bookmark bookmark = BookmarkManager.getBookmarkWithoutPermissions(Long.parseLong(bookmarkID));
 
     boolean delete = request.getParameter("delete") != null;
 
@@ -25,6 +28,9 @@
         }
         return;
     }
+
+    BookmarkPermissionSummary summary = BookmarkManager.getPermissionSummaries(
+            Collections.singleton(bookmark.getBookmarkID()), 5).get(bookmark.getBookmarkID());
 %>
 
 
@@ -67,11 +73,11 @@
         </tr>
         <tr valign="top">
             <td><b><fmt:message key="bookmark.delete.url.users" /></b></td>
-            <td><%= bookmark.getUsers()%>
+            <td><%= getCommaDelimitedList(summary.getUsers(), summary.getUserCount())%>
         </tr>
         <tr valign="top">
             <td><b><fmt:message key="bookmark.delete.url.groups" /></b></td>
-            <td><%= bookmark.getGroups()%>
+            <td><%= getCommaDelimitedList(summary.getGroups(), summary.getGroupCount())%>
         </tr>
         <tr><td></td>
             <td>
@@ -101,12 +107,12 @@ else { %>
         </tr>
         <tr valign="top">
             <td><b><fmt:message key="bookmark.delete.chat.users" /></b></td>
-            <td class="field-text"><%= bookmark.isGlobalBookmark() ? "ALL" : getCommaDelimitedList(bookmark.getUsers(), 5)%></td>
+            <td class="field-text"><%= bookmark.isGlobalBookmark() ? "ALL" : getCommaDelimitedList(summary.getUsers(), summary.getUserCount())%></td>
         </tr>
 
         <tr valign="top">
             <td><b><fmt:message key="bookmark.delete.chat.groups" /></b></td>
-            <td class="field-text"><%= bookmark.isGlobalBookmark() ? "ALL" : getCommaDelimitedList(bookmark.getGroups(), 5) %></td>
+            <td class="field-text"><%= bookmark.isGlobalBookmark() ? "ALL" : getCommaDelimitedList(summary.getGroups(), summary.getGroupCount()) %></td>
         </tr>
         <tr>
             <td><b><fmt:message key="bookmark.delete.chat.autojoin" /></b></td>
@@ -137,24 +143,24 @@ else { %>
      * A more elegant string representing all users that this bookmark
      * "belongs" to.
      *
+     * @param strings the first names.
+     * @param total   the total number of names.
      * @return the string.
      */
-    public String getCommaDelimitedList(Collection<String> strings, int limit) {
-        int counter = 0;
+    public String getCommaDelimitedList(Collection<String> strings, int total) {
         StringBuilder buf = new StringBuilder();
         for (String string : strings) {
             buf.append(string);
             buf.append(",");
-            counter++;
-            if (counter >= limit) {
-                break;
-            }
         }
 
         String returnStr = buf.toString();
         if (returnStr.endsWith(",")) {
             returnStr = returnStr.substring(0, returnStr.length() - 1);
         }
+        if (total > strings.size()) {
+            returnStr = returnStr + ", ... (" + total + ")";
+        }
         return returnStr;
     }
 
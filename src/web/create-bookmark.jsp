@@ -2,6 +2,7 @@
 <%@ page import="org.jivesoftware.openfire.plugin.spark.Bookmark" %>
 <%@ page import="org.jivesoftware.util.Log" %>
 <%@ page import="org.jivesoftware.util.ParamUtils" %>
+<%@ page import="java.sql.SQLException" %>
 <%@ page import="java.util.ArrayList" %>
 <%@ page import="java.util.Collection" %>
 <%@ page import="java.util.HashMap" %>
@@ -143,31 +144,29 @@
     }
     else {
         if ((createURLBookmark || createGroupchat) && errors.size() == 0) {
-            Bookmark bookmark = null;
+            // Stage all changes, so that they are saved in one transaction. A new bookmark is
+            // created by the same transaction.
+            Bookmark.Editor editor = null;
 
             if (bookmarkID == null) {
-                if (createURLBookmark)
-                    bookmark = new Bookmark(Bookmark.Type.url, urlName, url);
-
-                if (createGroupchat) {
-                    bookmark = new Bookmark(Bookmark.Type.group_chat, groupchatName, groupchatJID);
-                }
+                editor = Bookmark.create(createURLBookmark ? Bookmark.Type.url : Bookmark.Type.group_chat);
             }
             else {
                 try {
-                    bookmark = new Bookmark(Long.parseLong(bookmarkID));
+                    editor = new Bookmark(Long.parseLong(bookmarkID)).edit();
                 }
                 catch (NotFoundException e) {
                     Log.error(e);
                 }
-                if (createURLBookmark) {
-                    bookmark.setName(urlName);
-                    bookmark.setValue(url);
-                }
-                else {
-                    bookmark.setName(groupchatName);
-                    bookmark.setValue(groupchatJID);
-                }
+            }
+
+            if (createURLBookmark) {
+                editor.setName(urlName);
+                editor.setValue(url);
+            }
+            else {
+                editor.setName(groupchatName);
+                editor.setValue(groupchatJID);
             }
 
             List<String> userCollection = new ArrayList<String>();
@@ -178,7 +177,7 @@
                     userCollection.add(tkn.nextToken());
                 }
 
-                bookmark.setUsers(userCollection);
+                editor.setUsers(userCollection);
             }
 
             if (groups != null) {
@@ -187,44 +186,47 @@
                     groupCollection.add(tkn.nextToken());
                 }
 
-                bookmark.setGroups(groupCollection);
+                editor.setGroups(groupCollection);
             }
 
-            if (allUsers) {
-                bookmark.setGlobalBookmark(true);
-            }
-            else {
-                bookmark.setGlobalBookmark(false);
-            }
+            editor.setGlobalBookmark(allUsers);
 
             if (createURLBookmark) {
                 if (url != null) {
-                    bookmark.setProperty("url", url);
+                    editor.setProperty("url", url);
                 }
 
-                if (isRSS) bookmark.setProperty("rss", "true"); else bookmark.deleteProperty("rss");
-                if (isWebApp) bookmark.setProperty("webapp", "true"); else bookmark.deleteProperty("webapp");
-                if (isCollabApp) bookmark.setProperty("collabapp", "true"); else bookmark.deleteProperty("collabapp");
-                if (isHomePage) bookmark.setProperty("homepage", "true"); else bookmark.deleteProperty("homepage");                
+                if (isRSS) editor.setProperty("rss", "true"); else editor.deleteProperty("rss");
+                if (isWebApp) editor.setProperty("webapp", "true"); else editor.deleteProperty("webapp");
+                if (isCollabApp) editor.setProperty("collabapp", "true"); else editor.deleteProperty("collabapp");
+                if (isHomePage) editor.setProperty("homepage", "true"); else editor.deleteProperty("homepage");
 
             }
             else {
                 if (autojoin) {
-                    bookmark.setProperty("autojoin", "true");
+                    editor.setProperty("autojoin", "true");
                 }
                     else {
-                    bookmark.deleteProperty("autojoin");
+                    editor.deleteProperty("autojoin");
                 }
                 if (nameAsNick) {
-                    bookmark.setProperty("nameasnick", "true");
+                    editor.setProperty("nameasnick", "true");
                 }
                     else {
-                    bookmark.deleteProperty("nameasnick");
+                    editor.deleteProperty("nameasnick");
                 }
                 if (avatarUri != null && avatarUri.startsWith("data:")) {
-                    bookmark.setProperty("avatar_uri", avatarUri);                
+                    editor.setProperty("avatar_uri", avatarUri);
                 }
             }
+
+            try {
+                editor.commit();
+            }
+            catch (SQLException e) {
+                Log.error(e);
+                errors.put("general", LocaleUtils.getLocalizedString("bookmark.save.error", "bookmarks"));
+            }
         }
     }
 
@@ -341,6 +343,12 @@
 </div>
 <% } %>
 
+<% if (errors.get("general") != null) { %>
+<div class="jive-error-text">
+   <%= errors.get("general") %>
+</div>
+<% } %>
+
 
 <% if (urlType) { %>
 <form id="urlForm" name="urlForm" action="create-bookmark.jsp" method="post">
@@ -1,8 +1,16 @@
 <%@ page contentType="text/html; charset=UTF-8" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.Bookmark" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkManager" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkCounts" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkPage" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkPermissionSummary" %>
+<%@ page import="org.jivesoftware.util.ParamUtils" %>
+<%@ page import="java.net.URLEncoder" %>
 <%@ page import="org.jivesoftware.util.LocaleUtils" %>
-<%@ page import="java.util.Collection"%>
+<%@ page import="java.util.ArrayList" %>
+<%@ page import="java.util.Collection" %>
+<%@ page import="java.util.List" %>
+<%@ page import="java.util.Map" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
 
@@ -10,7 +18,34 @@
     boolean bookmarkCreated = request.getParameter("bookmarkCreated") != null;
 
     boolean delete = request.getParameter("delete") != null;
-    final Collection<Bookmark> bookmarks = BookmarkManager.getBookmarks();
+
+    // Bookmarks are listed one page at a time, so that large numbers of bookmarks don't have to be loaded at once.
+    BookmarkPage.Sort sort;
+    try {
+        sort = BookmarkPage.Sort.valueOf(ParamUtils.getParameter(request, "sort", true));
+    }
+    catch (Exception e) {
+        sort = BookmarkPage.Sort.name;
+    }
+    String cursor = ParamUtils.getParameter(request, "cursor", true);
+    final int pageSize = Math.max(1, ParamUtils.getIntParameter(request, "range", 100));
+    BookmarkPage bookmarkPage;
+    try {
+        bookmarkPage = BookmarkManager.getBookmarkPage(Bookmark.Type.group_chat, sort, pageSize, cursor, false);
+    }
+    catch (IllegalArgumentException e) {
+        cursor = null;
+        bookmarkPage = BookmarkManager.getBookmarkPage(Bookmark.Type.group_chat, sort, pageSize, null, false);
+    }
+    final Collection<Bookmark> bookmarks = bookmarkPage.getBookmarks();
+
+    // Summarize the users and groups of the bookmarks, instead of loading all of them.
+    final List<Long> bookmarkIDs = new ArrayList<Long>();
+    for (Bookmark bookmark : bookmarks) {
+        bookmarkIDs.add(bookmark.getBookmarkID());
+    }
+    final Map<Long, BookmarkPermissionSummary> summaries = BookmarkManager.getPermissionSummaries(bookmarkIDs, 0);
+    final BookmarkCounts counts = BookmarkManager.getBookmarkCounts();
 %>
 
 <html>
@@ -43,13 +78,22 @@
 </div>
 <% } %>
 
+<% if (counts.getCount(Bookmark.Type.group_chat) > 0) { %>
+<p>
+    <fmt:message key="group.chat.bookmark.summary">
+        <fmt:param value="<%= counts.getCount(Bookmark.Type.group_chat) %>"/>
+        <fmt:param value="<%= counts.getGlobalCount(Bookmark.Type.group_chat) %>"/>
+    </fmt:message>
+</p>
+<% } %>
+
 <br/>
 
     <div class="div-border" style="padding: 12px; width: 95%;">
         <table class="jive-table" cellspacing="0" width="100%">
-            <th><fmt:message key="group.chat.bookmark.name" /></th><th><fmt:message key="group.chat.bookmark.address"/></th><th><fmt:message key="group.chat.bookmark.icon" /></th><th><fmt:message key="users" /></th><th><fmt:message key="groups" /></th><th><fmt:message key="group.chat.bookmark.autojoin" /></th><th><fmt:message key="group.chat.bookmark.nameasnick" /></th><th><fmt:message key="options" /></th>
+            <th><a href="groupchat-bookmarks.jsp?sort=name"><fmt:message key="group.chat.bookmark.name" /></a></th><th><a href="groupchat-bookmarks.jsp?sort=value"><fmt:message key="group.chat.bookmark.address"/></a></th><th><fmt:message key="group.chat.bookmark.icon" /></th><th><fmt:message key="users" /></th><th><fmt:message key="groups" /></th><th><fmt:message key="group.chat.bookmark.autojoin" /></th><th><fmt:message key="group.chat.bookmark.nameasnick" /></th><th><fmt:message key="options" /></th>
             <%
-                boolean hasBookmarks = false;
+                boolean hasBookmarks = counts.getCount(Bookmark.Type.group_chat) > 0;
                 for (Bookmark bookmark : bookmarks) {
                     String users = "";
                     String groups = "";
@@ -57,14 +101,14 @@
                         continue;
                     }
                     else {
-                        hasBookmarks = true;
                         if (bookmark.isGlobalBookmark()) {
                             users = "All";
                             groups = "All";
                         }
                         else {
-                            users = bookmark.getUsers().size() + " "+ LocaleUtils.getLocalizedString("group.chat.bookmark.users", "bookmarks");
-                            groups = bookmark.getGroups().size() + " "+LocaleUtils.getLocalizedString("group.chat.bookmark.groups", "bookmarks");
+                            final BookmarkPermissionSummary summary = summaries.get(bookmark.getBookmarkID());
+                            users = summary.getUserCount() + " "+ LocaleUtils.getLocalizedString("group.chat.bookmark.users", "bookmarks");
+                            groups = summary.getGroupCount() + " "+LocaleUtils.getLocalizedString("group.chat.bookmark.groups", "bookmarks");
                         }
                     }
             %>
@@ -97,6 +141,17 @@
         </table>
     </div>
 
+    <% if (cursor != null || bookmarkPage.getNextCursor() != null) { %>
+    <p>
+        <% if (cursor != null) { %>
+        <a href="groupchat-bookmarks.jsp?sort=<%= sort %>&range=<%= pageSize %>"><fmt:message key="bookmark.page.first" /></a>
+        <% } %>
+        <% if (bookmarkPage.getNextCursor() != null) { %>
+        <a href="groupchat-bookmarks.jsp?sort=<%= sort %>&range=<%= pageSize %>&cursor=<%= URLEncoder.encode(bookmarkPage.getNextCursor(), "UTF-8") %>"><fmt:message key="bookmark.page.next" /></a>
+        <% } %>
+    </p>
+    <% } %>
+
 </body>
 </html>
 
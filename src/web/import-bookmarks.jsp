@@ -0,0 +1,74 @@
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+
+<html>
+<head>
+    <title><fmt:message key="bookmark.import.title" /></title>
+    <meta name="pageID" content="import-bookmarks"/>
+    <style type="text/css">
+        .div-border {
+            border: 1px solid #CCCCCC;
+            -moz-border-radius: 3px;
+        }
+    </style>
+    <script type="text/javascript">
+        // The file is posted as the body of the request, so that the server can read it as a stream.
+        function importBookmarks() {
+            var file = document.getElementById('file').files[0];
+            if (!file) {
+                return false;
+            }
+            var format = document.getElementById('format').value;
+            var request = new XMLHttpRequest();
+            request.open('POST', 'import');
+            request.setRequestHeader('Content-Type', format === 'json' ? 'application/json' : 'application/xml');
+            request.onload = function () {
+                document.getElementById('result').textContent = request.status === 200 ? request.responseText : request.statusText;
+            };
+            document.getElementById('result').textContent = '<fmt:message key="bookmark.import.running" />';
+            request.send(file);
+            return false;
+        }
+    </script>
+</head>
+
+<body>
+
+<p>
+    <fmt:message key="bookmark.import.description" />
+</p>
+
+<div class="div-border" style="padding: 12px; width: 95%;">
+    <form onsubmit="return importBookmarks();">
+        <table cellpadding="3" cellspacing="0" border="0">
+            <tr>
+                <td><fmt:message key="bookmark.import.file" /></td>
+                <td><input type="file" id="file" name="file"/></td>
+            </tr>
+            <tr>
+                <td><fmt:message key="bookmark.import.format" /></td>
+                <td>
+                    <select id="format" name="format">
+                        <option value="xml">XML</option>
+                        <option value="json">JSON</option>
+                    </select>
+                </td>
+            </tr>
+            <tr>
+                <td></td>
+                <td><input type="submit" value="<fmt:message key="bookmark.import.submit" />"/></td>
+            </tr>
+        </table>
+    </form>
+    <pre id="result"></pre>
+</div>
+
+<p>
+    <fmt:message key="bookmark.export.description" />
+    <a href="export?format=xml">XML</a>,
+    <a href="export?format=json">JSON</a>
+</p>
+
+</body>
+</html>
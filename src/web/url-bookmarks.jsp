@@ -1,7 +1,15 @@
 <%@ page contentType="text/html; charset=UTF-8" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.Bookmark" %>
 <%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkManager" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkCounts" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkPage" %>
+<%@ page import="org.jivesoftware.openfire.plugin.spark.BookmarkPermissionSummary" %>
+<%@ page import="org.jivesoftware.util.ParamUtils" %>
+<%@ page import="java.net.URLEncoder" %>
+<%@ page import="java.util.ArrayList" %>
 <%@ page import="java.util.Collection" %>
+<%@ page import="java.util.List" %>
+<%@ page import="java.util.Map" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
 
@@ -9,7 +17,34 @@
     boolean urlBookmarkCreated = request.getParameter("urlCreated") != null;
 
     boolean delete = request.getParameter("delete") != null;
-    final Collection<Bookmark> bookmarks = BookmarkManager.getBookmarks();
+
+    // Bookmarks are listed one page at a time, so that large numbers of bookmarks don't have to be loaded at once.
+    BookmarkPage.Sort sort;
+    try {
+        sort = BookmarkPage.Sort.valueOf(ParamUtils.getParameter(request, "sort", true));
+    }
+    catch (Exception e) {
+        sort = BookmarkPage.Sort.name;
+    }
+    String cursor = ParamUtils.getParameter(request, "cursor", true);
+    final int pageSize = Math.max(1, ParamUtils.getIntParameter(request, "range", 100));
+    BookmarkPage bookmarkPage;
+    try {
+        bookmarkPage = BookmarkManager.getBookmarkPage(Bookmark.Type.url, sort, pageSize, cursor, false);
+    }
+    catch (IllegalArgumentException e) {
+        cursor = null;
+        bookmarkPage = BookmarkManager.getBookmarkPage(Bookmark.Type.url, sort, pageSize, null, false);
+    }
+    final Collection<Bookmark> bookmarks = bookmarkPage.getBookmarks();
+
+    // Summarize the users and groups of the bookmarks, instead of loading all of them.
+    final List<Long> bookmarkIDs = new ArrayList<Long>();
+    for (Bookmark bookmark : bookmarks) {
+        bookmarkIDs.add(bookmark.getBookmarkID());
+    }
+    final Map<Long, BookmarkPermissionSummary> summaries = BookmarkManager.getPermissionSummaries(bookmarkIDs, 5);
+    final BookmarkCounts counts = BookmarkManager.getBookmarkCounts();
 %>
 
 <html>
@@ -41,19 +76,27 @@
    <fmt:message key="bookmark.url.deleted" />
 </div>
 <% } %>
+<% if (counts.getCount(Bookmark.Type.url) > 0) { %>
+<p>
+    <fmt:message key="bookmark.url.summary">
+        <fmt:param value="<%= counts.getCount(Bookmark.Type.url) %>"/>
+        <fmt:param value="<%= counts.getGlobalCount(Bookmark.Type.url) %>"/>
+    </fmt:message>
+</p>
+<% } %>
 <br/>
 
 
     <div class="div-border" style="padding: 12px; width: 95%;">
         <table class="jive-table" cellspacing="0" width="100%">
-            <th><fmt:message key="bookmark.url.name" /></th>
-            <th><fmt:message key="bookmark.url" /></th>
+            <th><a href="url-bookmarks.jsp?sort=name"><fmt:message key="bookmark.url.name" /></a></th>
+            <th><a href="url-bookmarks.jsp?sort=value"><fmt:message key="bookmark.url" /></a></th>
             <th><fmt:message key="bookmark.url.users" /></th>
             <th><fmt:message key="bookmark.url.groups" /></th>
             <th><fmt:message key="bookmark.url.rss" /></th>
             <th><fmt:message key="bookmark.url.options" /></th>
             <%
-                boolean hasBookmarks = false;
+                boolean hasBookmarks = counts.getCount(Bookmark.Type.url) > 0;
                 for (Bookmark bookmark : bookmarks) {
                     String users = "";
                     String groups = "";
@@ -61,15 +104,14 @@
                         continue;
                     }
                     else {
-                        hasBookmarks = true;
-
                         if (bookmark.isGlobalBookmark()) {
                             users = "ALL";
                             groups = "ALL";
                         }
                         else {
-                            users = getCommaDelimitedList(bookmark.getUsers(), 5);
-                            groups = getCommaDelimitedList(bookmark.getGroups(), 5);
+                            final BookmarkPermissionSummary summary = summaries.get(bookmark.getBookmarkID());
+                            users = getCommaDelimitedList(summary.getUsers(), 5);
+                            groups = getCommaDelimitedList(summary.getGroups(), 5);
                         }
                     }
             %>
@@ -100,6 +142,17 @@
         </table>
     </div>
 
+    <% if (cursor != null || bookmarkPage.getNextCursor() != null) { %>
+    <p>
+        <% if (cursor != null) { %>
+        <a href="url-bookmarks.jsp?sort=<%= sort %>&range=<%= pageSize %>"><fmt:message key="bookmark.page.first" /></a>
+        <% } %>
+        <% if (bookmarkPage.getNextCursor() != null) { %>
+        <a href="url-bookmarks.jsp?sort=<%= sort %>&range=<%= pageSize %>&cursor=<%= URLEncoder.encode(bookmarkPage.getNextCursor(), "UTF-8") %>"><fmt:message key="bookmark.page.next" /></a>
+        <% } %>
+    </p>
+    <% } %>
+
 </body>
 </html>
 